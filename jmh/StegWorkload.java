@@ -0,0 +1,129 @@
+/**
+ * This class is the Workload the benchmarks in the steg package run (see
+ * steg.Workload for why it is in the default package).
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+public class StegWorkload implements steg.Workload {
+
+  private File input;
+  private File output;
+  private StegImage image;
+  private Steganografier steganografier;
+  private String flags;
+  private String message;
+  private LsbEngine engine;
+  private int[] pixels;
+  private int firstPixel;
+  private byte[] out;
+
+  public StegWorkload() {
+    Log.setLevel(Log.Level.WARN);
+  }
+
+  @Override
+  public void open(int width, int height, String format) throws IOException {
+    input = File.createTempFile("steg-bench", "." + format);
+    output = File.createTempFile("steg-bench-out", "." + format);
+    writeNoiseImage(input, width, height, format);
+    image = new StegImage(input.getPath(), output.getPath());
+    steganografier = new Steganografier(image);
+  }
+
+  @Override
+  public void prepare(String flags, int messageBytes) {
+    int flagCode = Steganografier.verifyFlags(flags);
+    this.flags = flags;
+    this.message = randomText(messageBytes);
+    this.engine = new LsbEngine(flagCode, Steganografier.bitsPerChannel(flags));
+    this.firstPixel = PayloadHeader.pixels(PayloadHeader.maskForFlagCode(flagCode));
+    this.pixels = noisePixels(image.getWidth() * image.getHeight(), new Random(42));
+    this.out = new byte[messageBytes];
+    if (firstPixel + engine.pixelsFor(messageBytes) > pixels.length) {
+      throw new IllegalArgumentException("A message of " + messageBytes + " bytes does not fit in a "
+        + image.getWidth() + "x" + image.getHeight() + " image with " + flags);
+    }
+    conceal();
+  }
+
+  @Override
+  public void close() {
+    input.delete();
+    output.delete();
+  }
+
+  @Override
+  public Object read() {
+    return new StegImage(input.getPath());
+  }
+
+  @Override
+  public boolean save(String format) {
+    image.setOutputFormat(format);
+    return image.saveImage();
+  }
+
+  @Override
+  public int[] clearLowestBit() {
+    return steganografier.clearLowestBit();
+  }
+
+  @Override
+  public void conceal() {
+    steganografier.selectableSteganographi(message, flags);
+  }
+
+  @Override
+  public String reveal() {
+    return steganografier.selectableDesteganographi(flags);
+  }
+
+  @Override
+  public int extract() {
+    return engine.extract(pixels, firstPixel, out, 0, out.length);
+  }
+
+  @Override
+  public int extractScalar() {
+    return engine.extractScalar(pixels, firstPixel, out, 0, out.length);
+  }
+
+  private static void writeNoiseImage(File file, int width, int height, String format)
+    throws IOException {
+    boolean alpha = !format.equals(StegImage.FORMAT_BMP);
+    BufferedImage image = new BufferedImage(width, height,
+      alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(42);
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        row[x] = alpha ? random.nextInt() : random.nextInt() & 0xFFFFFF;
+      }
+      image.setRGB(0, y, width, 1, row, 0, width);
+    }
+    ImageIO.write(image, format, file);
+  }
+
+  private static int[] noisePixels(int count, Random random) {
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = random.nextInt();
+    }
+    return pixels;
+  }
+
+  private static String randomText(int length) {
+    Random random = new Random(length);
+    char[] text = new char[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = (char) (' ' + random.nextInt(95)); // printable ASCII
+    }
+    return new String(text);
+  }
+
+}
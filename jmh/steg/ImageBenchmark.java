@@ -0,0 +1,79 @@
+package steg;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * These benchmarks time the image side of conceal and reveal for every image
+ * size, on random noise saved as a bmp:
+ * <p>
+ * read : new StegImage(), which decodes the image with ImageIO
+ * <p>
+ * save : StegImage.saveImage() in each output format
+ * <p>
+ * clearLowestBit : Steganografier.clearLowestBit()
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageBenchmark {
+
+  @Param({"vga", "1080p", "12mp", "50mp"})
+  public String image;
+
+  private Workload workload;
+
+  /**
+   * The output format, in a state of its own so only save() runs for each of
+   * them.
+   */
+  @State(Scope.Benchmark)
+  public static class Output {
+
+    @Param({"bmp", "png", "qoi"})
+    public String format;
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    int[] size = Workload.imageSize(image);
+    workload = Workload.create();
+    workload.open(size[0], size[1], "bmp");
+  }
+
+  @TearDown
+  public void tearDown() {
+    workload.close();
+  }
+
+  @Benchmark
+  public Object read() {
+    return workload.read();
+  }
+
+  @Benchmark
+  public boolean save(Output output) {
+    return workload.save(output.format);
+  }
+
+  @Benchmark
+  public int[] clearLowestBit() {
+    return workload.clearLowestBit();
+  }
+
+}
@@ -0,0 +1,89 @@
+package steg;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * These benchmarks conceal and reveal a message for every flag code, message
+ * size and image size:
+ * <p>
+ * conceal : Steganografier.selectableSteganographi()
+ * <p>
+ * reveal : Steganografier.selectableDesteganographi()
+ * <p>
+ * extract : LsbEngine.extract(), the loop reveal spends its time in, on the
+ * pixels alone
+ * <p>
+ * extractScalar : LsbEngine.extractScalar(), the slot at a time loop that
+ * extract() is checked against
+ * <p>
+ * The carrier is random noise saved as a png with alpha, so the flags with
+ * alpha run too. A message that does not fit in the image with the flags
+ * fails its setup, and JMH goes on to the next parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+  @Param({"vga", "1080p", "12mp", "50mp"})
+  public String image;
+
+  @Param({"-rgb", "-rg", "-rb", "-gb", "-r", "-g", "-b", "-rgba", "-a", "-ra", "-ga", "-ba",
+    "-rga", "-rba", "-gba"})
+  public String flags;
+
+  @Param({"16", "1k", "64k", "1m"})
+  public String message;
+
+  private Workload workload;
+
+  @Setup
+  public void setUp() throws IOException {
+    int[] size = Workload.imageSize(image);
+    workload = Workload.create();
+    workload.open(size[0], size[1], "png");
+    workload.prepare(flags, Workload.parseSize(message));
+  }
+
+  @TearDown
+  public void tearDown() {
+    workload.close();
+  }
+
+  @Benchmark
+  public void conceal() {
+    workload.conceal();
+  }
+
+  @Benchmark
+  public String reveal() {
+    return workload.reveal();
+  }
+
+  @Benchmark
+  public int extract() {
+    return workload.extract();
+  }
+
+  @Benchmark
+  public int extractScalar() {
+    return workload.extractScalar();
+  }
+
+}
@@ -0,0 +1,104 @@
+package steg;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * This interface is what the benchmarks measure through. JMH does not take
+ * benchmarks in the default package, and code in a package can't name the
+ * classes of the default package, so the benchmarks call this interface and
+ * StegWorkload, in the default package, implements it with plain calls to
+ * StegImage, Steganografier and LsbEngine. Only create() looks it up by name.
+ */
+public interface Workload {
+
+  /**
+   * This method writes an image of random noise to a temporary file and
+   * opens it as the carrier.
+   *
+   * @param width
+   * @param height
+   * @param format - bmp, which has no alpha, or png, which keeps it
+   *
+   * @throws IOException if the image can't be written
+   */
+  void open(int width, int height, String format) throws IOException;
+
+  /**
+   * This method gets a message of messageBytes ready for conceal(), extract()
+   * and extractScalar(), and conceals it once for reveal().
+   *
+   * @param flags
+   * @param messageBytes
+   *
+   * @throws IllegalArgumentException if the message does not fit in the
+   *                                  carrier with flags
+   */
+  void prepare(String flags, int messageBytes);
+
+  /**
+   * This method deletes the temporary files.
+   */
+  void close();
+
+  /**
+   * This method decodes the carrier file again, as new StegImage() does.
+   */
+  Object read();
+
+  boolean save(String format);
+
+  int[] clearLowestBit();
+
+  void conceal();
+
+  String reveal();
+
+  int extract();
+
+  int extractScalar();
+
+  /**
+   * This method creates the workload.
+   */
+  static Workload create() {
+    try {
+      return (Workload) Class.forName("StegWorkload").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * This method returns the width and height of an image size: vga, 1080p,
+   * 12mp or 50mp.
+   */
+  static int[] imageSize(String name) {
+    switch (name) {
+      case "vga":
+        return new int[]{640, 480};
+      case "1080p":
+        return new int[]{1920, 1080};
+      case "12mp":
+        return new int[]{4000, 3000};
+      case "50mp":
+        return new int[]{8660, 5774};
+      default:
+        throw new IllegalArgumentException("Unknown image size - " + name);
+    }
+  }
+
+  /**
+   * This method returns the number of bytes of a size like 16, 1k or 1m.
+   */
+  static int parseSize(String size) {
+    String s = size.toLowerCase(Locale.ROOT);
+    if (s.endsWith("k")) {
+      return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024;
+    } else if (s.endsWith("m")) {
+      return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024 * 1024;
+    }
+    return Integer.parseInt(s);
+  }
+
+}
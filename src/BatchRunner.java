@@ -0,0 +1,413 @@
+/**
+ * This class conceals payload files into many images, or reveals them, in one
+ * run, so the cost of starting the JVM, scanning the ImageIO plugins and
+ * warming up the JIT is paid once instead of once per image. The jobs come
+ * either from a manifest file or from a directory of images.
+ * <p>
+ * A manifest has one job per line, with the fields separated by tabs or
+ * spaces, either a conceal job or a reveal job:
+ * <p>
+ * inputPath outputPath flags payloadPath
+ * <p>
+ * reveal inputPath flags payloadPath
+ * <p>
+ * A reveal job writes the payload of the image to payloadPath; the flags are
+ * only used for images concealed before the PayloadHeader existed (see
+ * Steganografier.selectableDesteganographi()). Blank lines and lines starting
+ * with '#' are skipped. When a directory is
+ * given instead, every image in it is concealed with the same flags and
+ * payload and saved into the output directory under the same name, as a bmp
+ * unless another format is set with setOutputFormat().
+ * <p>
+ * The jobs run through a Pipeline of three stages, each with its own number
+ * of threads: decode reads the input image, embed conceals and checks the
+ * payload (or reveals it into its file), and encode saves the output image.
+ * So the images are read and
+ * written while others are being embedded, instead of the disk and the cores
+ * taking turns. The queues between the stages are bounded, and the thread
+ * reading the jobs waits once the first one is full, so a huge manifest is
+ * never read into memory ahead of the work. The result of every job is
+ * printed as it finishes, followed by the totals and throughput and the
+ * counters of each stage, to tell which one needs more threads.
+ * <p>
+ * Each embed thread keeps one Steganografier for all its jobs, and the decoded
+ * images and big buffers of finished jobs are kept in a BufferPool for the
+ * next ones, so a steady run allocates next to nothing per image. How well
+ * that worked is printed with the totals.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class BatchRunner {
+
+  private final Pipeline<Job> pipeline = new Pipeline<>();
+  private final int workers;
+  private int decoders;
+  private int encoders;
+  // Shared by the images for their embedding, or null for one thread each
+  private final ForkJoinPool pool;
+  private final Steganografier.Verify verify;
+  // Format of the output images, or null to go by their extension
+  private String format;
+  private int pngLevel = PngWriter.DEFAULT_LEVEL;
+  private PayloadCodec codec;
+  private BufferPool buffers = new BufferPool(BufferPool.defaultMaxBytes());
+  // The Steganografier of each embed thread, pointed at each of its images in turn
+  private final ThreadLocal<Steganografier> steganografiers = ThreadLocal.withInitial(this::newSteganografier);
+  private final AtomicInteger succeeded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong payloadBytes = new AtomicLong();
+  private final AtomicLong imageBytes = new AtomicLong();
+
+  /**
+   * Creates a runner.
+   *
+   * @param workers - number of images embedded at the same time
+   * @param threads - number of threads shared by the images for embedding
+   *                (see Steganografier.setThreads())
+   * @param verify  - checking done while concealing each image
+   */
+  public BatchRunner(int workers, int threads, Steganografier.Verify verify) {
+    this.verify = verify;
+    this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    this.workers = workers;
+    this.decoders = Math.max(1, workers / 2);
+    this.encoders = Math.max(1, workers / 2);
+  }
+
+  /**
+   * This method sets the number of images read and written at the same time.
+   * Both are half the workers by default.
+   *
+   * @param decoders - threads of the decode stage
+   * @param encoders - threads of the encode stage
+   */
+  public void setStageThreads(int decoders, int encoders) {
+    if (decoders < 1 || encoders < 1) {
+      throw new IllegalArgumentException("decoders and encoders must be at least 1");
+    }
+    this.decoders = decoders;
+    this.encoders = encoders;
+  }
+
+  /**
+   * This method sets the format the output images are saved in (see
+   * StegImage.setOutputFormat()) and the deflate level of png output.
+   *
+   * @param format   - the format, or null to go by the extension of each
+   *                 output path
+   * @param pngLevel
+   */
+  public void setOutputFormat(String format, int pngLevel) {
+    this.format = format;
+    this.pngLevel = pngLevel;
+  }
+
+  /**
+   * This method sets the codec every payload is encoded with (see
+   * Steganografier.setCodec()).
+   *
+   * @param codec - the codec, or null to choose one for each payload
+   */
+  public void setCodec(PayloadCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * This method sets the pool the images and buffers of the jobs are taken
+   * from and given back to. The default keeps up to
+   * BufferPool.defaultMaxBytes().
+   *
+   * @param buffers
+   */
+  public void setBufferPool(BufferPool buffers) {
+    this.buffers = buffers;
+  }
+
+  /**
+   * This method creates the Steganografier a worker uses for all its jobs.
+   */
+  private Steganografier newSteganografier() {
+    Steganografier steganografier = new Steganografier();
+    steganografier.setPool(pool);
+    steganografier.setVerify(verify);
+    steganografier.setCodec(codec);
+    return steganografier;
+  }
+
+  /**
+   * This method starts the stages. Each queue holds as many jobs as the
+   * stage behind it has threads, so a stage always has the next job at hand
+   * without many decoded images piling up in front of it.
+   */
+  private void start() {
+    pipeline.stage("decode", decoders, decoders, this::decode)
+      .stage("embed", workers, workers, this::embed)
+      .stage("encode", encoders, encoders, this::encode)
+      .start();
+  }
+
+  /**
+   * This method runs every job in the manifest and prints the results.
+   *
+   * @param manifestPath
+   *
+   * @throws IOException if the manifest can't be read
+   */
+  public void runManifest(String manifestPath) throws IOException {
+    long start = System.nanoTime();
+    start();
+    try (BufferedReader reader = new BufferedReader(new FileReader(manifestPath))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\t|\\s+");
+        if (fields.length != 4) {
+          report(false, manifestPath + ":" + lineNumber,
+            "expected inputPath outputPath flags payloadPath, or reveal inputPath flags payloadPath");
+          continue;
+        }
+        if (fields[0].equals("reveal")) {
+          submit(new Job(fields[1], null, fields[2], fields[3]));
+        } else {
+          submit(new Job(fields[0], fields[1], fields[2], fields[3]));
+        }
+      }
+    } finally {
+      finish(start);
+    }
+  }
+
+  /**
+   * This method conceals the same payload into every image in a directory and
+   * prints the results.
+   *
+   * @param inputDir
+   * @param outputDir
+   * @param flags
+   * @param payloadPath
+   */
+  public void runDirectory(String inputDir, String outputDir, String flags, String payloadPath) {
+    long start = System.nanoTime();
+    start();
+    try {
+      File[] files = new File(inputDir).listFiles();
+      if (files == null) {
+        report(false, inputDir, "not a directory");
+        return;
+      }
+      Arrays.sort(files);
+      new File(outputDir).mkdirs();
+      for (File file : files) {
+        if (!StegImage.isImageFile(file)) {
+          continue;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String output = new File(outputDir, name.substring(0, dot) + "."
+          + (format == null ? StegImage.FORMAT_BMP : format.toLowerCase(Locale.ROOT))).getPath();
+        submit(new Job(file.getPath(), output, flags, payloadPath));
+      }
+    } finally {
+      finish(start);
+    }
+  }
+
+  /**
+   * This method hands one job to the decode stage, waiting while its queue is
+   * full.
+   */
+  private void submit(Job job) {
+    try {
+      pipeline.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      report(false, job.input, "interrupted");
+    }
+  }
+
+  /**
+   * This method runs the decode stage of a job: it checks that the payload
+   * can fit and reads the input image.
+   */
+  private boolean decode(Job job) {
+    try {
+      // turn away payloads that can't fit before decoding the image, one that
+      // may be compressed at the smallest size it could be compressed to
+      if (!job.isReveal()) {
+        new CapacityPlanner(job.input).requireFits(new File(job.payloadPath).length(), codec,
+          job.flags);
+      }
+      job.image = new StegImage(job.input, job.output, buffers);
+      if (!job.image.isLoaded()) {
+        return fail(job, "the image could not be read");
+      }
+      if (job.isReveal()) {
+        return true;
+      }
+      if (format != null) {
+        job.image.setOutputFormat(format);
+      }
+      job.image.setPngLevel(pngLevel);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      return fail(job, String.valueOf(e.getMessage()));
+    }
+  }
+
+  /**
+   * This method runs the embed stage of a job: it conceals the payload into
+   * the image and checks it, or reveals the payload of a reveal job.
+   */
+  private boolean embed(Job job) {
+    try {
+      Steganografier steganografier = steganografiers.get();
+      steganografier.reset(job.image);
+      if (job.isReveal()) {
+        job.length = reveal(steganografier, job);
+      } else {
+        job.length = Steganography.concealVerified(steganografier, job.payloadPath, job.flags);
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      if (job.isReveal()) {
+        new File(job.payloadPath).delete(); // rather than leave half a payload
+      }
+      return fail(job, String.valueOf(e.getMessage()));
+    }
+  }
+
+  /**
+   * This method reveals the payload of a reveal job into its payload file.
+   *
+   * @return the number of bytes revealed
+   */
+  private static long reveal(Steganografier steganografier, Job job) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(job.payloadPath))) {
+      if (steganografier.hasPayloadHeader()) {
+        return steganografier.revealStream(out);
+      }
+      // images concealed before the header existed
+      byte[] message = steganografier.selectableDesteganographi(job.flags)
+        .getBytes(StandardCharsets.ISO_8859_1);
+      out.write(message);
+      return message.length;
+    }
+  }
+
+  /**
+   * This method runs the encode stage of a job: it saves the output image. A
+   * reveal job has no image to save, and is only reported.
+   */
+  private boolean encode(Job job) {
+    try {
+      if (!job.isReveal() && !job.image.saveImage()) {
+        return fail(job, "the image could not be saved to " + job.output);
+      }
+      payloadBytes.addAndGet(job.length);
+      imageBytes.addAndGet(new File(job.input).length());
+      report(true, job.input, "-> " + (job.isReveal() ? job.payloadPath : job.output)
+        + " (" + job.length + " bytes, " + (System.nanoTime() - job.start) / 1000000 + " ms)");
+    } catch (RuntimeException e) {
+      return fail(job, String.valueOf(e.getMessage()));
+    } finally {
+      job.release();
+    }
+    return true;
+  }
+
+  /**
+   * This method reports a job that failed and gives back its image.
+   *
+   * @return false, so the job goes no further
+   */
+  private boolean fail(Job job, String detail) {
+    job.release();
+    report(false, job.input, detail);
+    return false;
+  }
+
+  private void report(boolean ok, String name, String detail) {
+    (ok ? succeeded : failed).incrementAndGet();
+    synchronized (System.out) {
+      System.out.println((ok ? "OK     " : "FAILED ") + name + " " + detail);
+    }
+  }
+
+  /**
+   * This method waits for the queued jobs and prints the totals.
+   *
+   * @param start - System.nanoTime() when the batch started
+   */
+  private void finish(long start) {
+    try {
+      pipeline.finish();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+    double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+    int jobs = succeeded.get() + failed.get();
+    System.out.println(String.format(Locale.ROOT,
+      "Batch: %d jobs, %d succeeded, %d failed in %.2f s "
+        + "(%.1f images/s, %.2f MB/s of images read, %.2f MB/s of payload)",
+      jobs, succeeded.get(), failed.get(), seconds, succeeded.get() / seconds,
+      imageBytes.get() / seconds / 1e6, payloadBytes.get() / seconds / 1e6));
+    System.out.println(pipeline.report());
+    System.out.println("Buffers: " + buffers.report());
+  }
+
+  /**
+   * One job, handed from stage to stage.
+   */
+  private static class Job {
+
+    private final String input;
+    // Path of the output image, or null for a reveal job
+    private final String output;
+    private final String flags;
+    // The payload to conceal, or where a reveal job writes the payload
+    private final String payloadPath;
+    private final long start = System.nanoTime();
+    private StegImage image;
+    private long length;
+
+    Job(String input, String output, String flags, String payloadPath) {
+      this.input = input;
+      this.output = output;
+      this.flags = flags;
+      this.payloadPath = payloadPath;
+    }
+
+    boolean isReveal() {
+      return output == null;
+    }
+
+    void release() {
+      if (image != null) {
+        image.release();
+        image = null;
+      }
+    }
+  }
+
+}
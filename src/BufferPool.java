@@ -0,0 +1,345 @@
+/**
+ * This class keeps the big arrays and images of finished jobs so the next job
+ * can use them again, instead of every image allocating its own. Images of a
+ * few megapixels need arrays of tens of megabytes, which G1 puts in humongous
+ * regions of their own; a long running batch or server that throws them away
+ * after every image spends much of its time collecting them.
+ * <p>
+ * Arrays are kept in size classes, four for every doubling, so an array is
+ * used again for any length in its class: ints() and bytes() hand out an
+ * array at least as long as asked for, rounded up to its class (at most a
+ * quarter longer). Whole images of pixels, which are used by their length,
+ * come from exactInts() instead, which only hands out an array of exactly that
+ * length. BufferedImages are kept by width, height and type.
+ * <p>
+ * Nothing is cleared when it is handed out again, so whoever takes a buffer
+ * must write every element before reading it. At most maxBytes are kept;
+ * buffers given back beyond that are left to the garbage collector. UNPOOLED
+ * keeps nothing, and is what StegImage uses unless it is given a pool.
+ * <p>
+ * The counters (see report()) tell how often a buffer was used again instead
+ * of allocated, and the most bytes that were ever kept and ever handed out at
+ * once.
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+class BufferPool {
+
+  static final BufferPool UNPOOLED = new BufferPool(0);
+
+  // Arrays shorter than this are cheap enough to allocate and are not kept
+  private static final int MIN_POOLED = 1 << 10;
+  // Buffers kept for each size class (or image size)
+  private static final int MAX_PER_CLASS = 8;
+
+  private final long maxBytes;
+  private final Map<Long, ArrayDeque<Object>> free = new HashMap<>();
+
+  private long requests;
+  private long reused;
+  private long released;
+  private long dropped;
+  private long keptBytes;
+  private long peakKeptBytes;
+  private long inUseBytes;
+  private long peakInUseBytes;
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxBytes - the most bytes of buffers kept for reuse at once
+   */
+  public BufferPool(long maxBytes) {
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * This method returns the size a pool should keep by default: a quarter of
+   * the heap.
+   *
+   * @return
+   */
+  public static long defaultMaxBytes() {
+    return Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  /**
+   * This method returns an int[] of at least length ints.
+   *
+   * @param length
+   *
+   * @return
+   */
+  public int[] ints(int length) {
+    int size = classSize(length);
+    Object buffer = take(key('i', size), length, false);
+    return buffer != null ? (int[]) buffer : allocated(new int[size]);
+  }
+
+  /**
+   * This method returns an int[] of exactly length ints, for arrays that are
+   * used by their length, such as all the pixels of an image.
+   *
+   * @param length
+   *
+   * @return
+   */
+  public int[] exactInts(int length) {
+    Object buffer = take(key('i', classSize(length)), length, true);
+    return buffer != null ? (int[]) buffer : allocated(new int[length]);
+  }
+
+  /**
+   * This method returns a byte[] of at least length bytes.
+   *
+   * @param length
+   *
+   * @return
+   */
+  public byte[] bytes(int length) {
+    int size = classSize(length);
+    Object buffer = take(key('b', size), length, false);
+    return buffer != null ? (byte[]) buffer : allocated(new byte[size]);
+  }
+
+  /**
+   * This method returns a BufferedImage of the size and type given.
+   *
+   * @param width
+   * @param height
+   * @param type   - one of the BufferedImage.TYPE_ constants
+   *
+   * @return
+   */
+  public BufferedImage image(int width, int height, int type) {
+    BufferedImage image = reusedImage(width, height, type);
+    return image != null ? image : allocated(new BufferedImage(width, height, type));
+  }
+
+  /**
+   * This method returns a kept BufferedImage of the size and type given, or
+   * null if there is none, for callers that can do without one (such as an
+   * ImageReader, which creates its own image otherwise).
+   *
+   * @param width
+   * @param height
+   * @param type
+   *
+   * @return
+   */
+  public BufferedImage reusedImage(int width, int height, int type) {
+    if (type == BufferedImage.TYPE_CUSTOM) {
+      return null;
+    }
+    return (BufferedImage) take(imageKey(width, height, type), 0, false);
+  }
+
+  /**
+   * This method gives back an int[] that was taken from this pool (or any
+   * other int[] no longer needed). It must not be used afterwards.
+   *
+   * @param buffer - the array, or null
+   */
+  public void release(int[] buffer) {
+    if (buffer != null) {
+      give(key('i', classSize(buffer.length)), buffer, 4L * buffer.length, buffer.length >= MIN_POOLED);
+    }
+  }
+
+  /**
+   * This method gives back a byte[].
+   *
+   * @param buffer - the array, or null
+   *
+   * @see #release(int[])
+   */
+  public void release(byte[] buffer) {
+    if (buffer != null) {
+      give(key('b', classSize(buffer.length)), buffer, buffer.length, buffer.length >= MIN_POOLED);
+    }
+  }
+
+  /**
+   * This method gives back a BufferedImage. Only images of the standard
+   * types backed by a single array are kept.
+   *
+   * @param image - the image, or null
+   *
+   * @see #release(int[])
+   */
+  public void release(BufferedImage image) {
+    if (image != null) {
+      give(imageKey(image.getWidth(), image.getHeight(), image.getType()), image, sizeOf(image),
+        image.getType() != BufferedImage.TYPE_CUSTOM);
+    }
+  }
+
+  /**
+   * This method returns the counters of the pool on one line.
+   *
+   * @return
+   */
+  public synchronized String report() {
+    return String.format(Locale.ROOT, "%d of %d buffers reused (%.0f%%), %d given back, %d dropped;"
+        + " kept %s (at most %s), in use at most %s", reused, requests,
+      requests == 0 ? 0.0 : 100.0 * reused / requests, released, dropped, megabytes(keptBytes),
+      megabytes(peakKeptBytes), megabytes(peakInUseBytes));
+  }
+
+  /**
+   * This method returns the counters in the Prometheus text format.
+   *
+   * @return
+   */
+  public synchronized String toPrometheus() {
+    return "# HELP steg_buffer_requests_total Buffers asked of the pool\n"
+      + "# TYPE steg_buffer_requests_total counter\n"
+      + "steg_buffer_requests_total " + requests + '\n'
+      + "# HELP steg_buffer_reused_total Buffers handed out again instead of allocated\n"
+      + "# TYPE steg_buffer_reused_total counter\n"
+      + "steg_buffer_reused_total " + reused + '\n'
+      + "# HELP steg_buffer_dropped_total Buffers given back but not kept\n"
+      + "# TYPE steg_buffer_dropped_total counter\n"
+      + "steg_buffer_dropped_total " + dropped + '\n'
+      + "# HELP steg_buffer_kept_bytes Bytes of buffers kept for reuse\n"
+      + "# TYPE steg_buffer_kept_bytes gauge\n"
+      + "steg_buffer_kept_bytes " + keptBytes + '\n'
+      + "# HELP steg_buffer_kept_peak_bytes Most bytes of buffers kept at once\n"
+      + "# TYPE steg_buffer_kept_peak_bytes gauge\n"
+      + "steg_buffer_kept_peak_bytes " + peakKeptBytes + '\n'
+      + "# HELP steg_buffer_in_use_peak_bytes Most bytes of buffers handed out at once\n"
+      + "# TYPE steg_buffer_in_use_peak_bytes gauge\n"
+      + "steg_buffer_in_use_peak_bytes " + peakInUseBytes + '\n';
+  }
+
+  /**
+   * This method returns the size class of an array of length elements: the
+   * length rounded up to the next of four steps between powers of two.
+   */
+  static int classSize(int length) {
+    if (length <= MIN_POOLED) {
+      return Math.max(length, 0);
+    }
+    int shift = 31 - Integer.numberOfLeadingZeros(length - 1) - 2;
+    long size = ((long) ((length - 1) >> shift) + 1) << shift;
+    return (int) Math.min(size, Integer.MAX_VALUE - 8);
+  }
+
+  private static long key(char kind, int size) {
+    return (long) kind << 56 | size;
+  }
+
+  private static long imageKey(int width, int height, int type) {
+    return (long) type << 56 | (long) width << 28 | height;
+  }
+
+  private static long sizeOf(BufferedImage image) {
+    if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+      return 4L * image.getRaster().getDataBuffer().getSize();
+    } else if (image.getRaster().getDataBuffer() instanceof DataBufferByte) {
+      return image.getRaster().getDataBuffer().getSize();
+    }
+    return 4L * image.getWidth() * image.getHeight();
+  }
+
+  private static String megabytes(long bytes) {
+    return String.format(Locale.ROOT, "%.1f MB", bytes / 1048576.0);
+  }
+
+  private int[] allocated(int[] buffer) {
+    handedOut(4L * buffer.length);
+    return buffer;
+  }
+
+  private byte[] allocated(byte[] buffer) {
+    handedOut(buffer.length);
+    return buffer;
+  }
+
+  private BufferedImage allocated(BufferedImage image) {
+    handedOut(sizeOf(image));
+    return image;
+  }
+
+  /**
+   * This method takes a kept buffer out of the class with the key: any one
+   * long enough, or only one of exactly length elements.
+   *
+   * @return the buffer, or null if none is kept
+   */
+  private Object take(long key, int length, boolean exact) {
+    if (maxBytes == 0) {
+      return null;
+    }
+    synchronized (this) {
+      requests++;
+      return takeKept(key, length, exact);
+    }
+  }
+
+  private Object takeKept(long key, int length, boolean exact) {
+    ArrayDeque<Object> buffers = free.get(key);
+    if (buffers == null) {
+      return null;
+    }
+    for (Iterator<Object> i = buffers.iterator(); i.hasNext(); ) {
+      Object buffer = i.next();
+      int bufferLength = buffer instanceof int[] ? ((int[]) buffer).length
+        : buffer instanceof byte[] ? ((byte[]) buffer).length : length;
+      if (exact ? bufferLength == length : bufferLength >= length) {
+        i.remove();
+        long size = buffer instanceof int[] ? 4L * bufferLength
+          : buffer instanceof byte[] ? bufferLength : sizeOf((BufferedImage) buffer);
+        keptBytes -= size;
+        reused++;
+        handedOut(size);
+        return buffer;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void handedOut(long size) {
+    if (maxBytes == 0) {
+      return;
+    }
+    inUseBytes += size;
+    peakInUseBytes = Math.max(peakInUseBytes, inUseBytes);
+  }
+
+  private void give(long key, Object buffer, long size, boolean poolable) {
+    if (maxBytes == 0) {
+      return;
+    }
+    synchronized (this) {
+      keep(key, buffer, size, poolable);
+    }
+  }
+
+  private void keep(long key, Object buffer, long size, boolean poolable) {
+    released++;
+    inUseBytes = Math.max(0, inUseBytes - size);
+    ArrayDeque<Object> buffers = free.get(key);
+    if (!poolable || keptBytes + size > maxBytes
+      || buffers != null && buffers.size() >= MAX_PER_CLASS) {
+      dropped++;
+      return;
+    }
+    if (buffers == null) {
+      buffers = new ArrayDeque<>();
+      free.put(key, buffers);
+    }
+    buffers.push(buffer);
+    keptBytes += size;
+    peakKeptBytes = Math.max(peakKeptBytes, keptBytes);
+  }
+
+}
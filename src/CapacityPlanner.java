@@ -0,0 +1,203 @@
+/**
+ * This class tells how many bytes of payload an image can hold without
+ * decoding it. Only the header of the image is read for its width and height
+ * (through the ImageReader for the format, QoiCodec or MappedCarrier), so a
+ * payload that can't fit is turned away in microseconds instead of after the
+ * whole image has been decoded.
+ * <p>
+ * The capacity counts the PayloadHeader written ahead of every payload, and
+ * is the same for a message and for a file: the payload is packed densely
+ * into bitsPerChannel bits of each selected color of every pixel after the
+ * header. A grayscale image holds a third of the pixels it has, each of three
+ * samples (see StegImage), and only images with alpha can be concealed into
+ * with flags that ask for it.
+ */
+
+import java.awt.Dimension;
+import java.io.File;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+class CapacityPlanner {
+
+  // One set of flags for each flag code, in flag code order
+  private static final String[] FLAGS = {"-rgb", "-rg", "-rb", "-gb", "-r", "-g", "-b"};
+  // The flags with alpha shown by report() for images that have it
+  private static final String[] ALPHA_FLAGS = {"-rgba", "-a"};
+
+  private final String path;
+  private int width;
+  private int height;
+  private boolean gray;
+  private boolean alpha;
+
+  /**
+   * Creates a planner for the image at path, reading only its header.
+   *
+   * @param path
+   *
+   * @throws IOException if the image can't be read or is in a format that
+   *                     has no ImageReader
+   */
+  public CapacityPlanner(String path) throws IOException {
+    this.path = path;
+    readHeader(new File(path));
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean hasAlpha() {
+    return alpha;
+  }
+
+  /**
+   * This method returns the number of bytes of payload the image holds when
+   * concealed with flags.
+   *
+   * @param flags - see Steganografier.selectableSteganographi()
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if the flags are invalid, or ask for
+   *                                  alpha the image does not have
+   */
+  public long capacity(String flags) {
+    int flagCode = Steganografier.verifyFlags(flags);
+    int bitsPerChannel = Steganografier.bitsPerChannel(flags);
+    if (!alpha && (PayloadHeader.maskForFlagCode(flagCode) & PayloadHeader.MASK_ALPHA) != 0) {
+      throw new IllegalArgumentException(path + " has no alpha to conceal into with " + flags);
+    }
+    long pixelCount = (long) width * (gray ? height / 3 : height)
+      - PayloadHeader.pixels(PayloadHeader.maskForFlagCode(flagCode));
+    // the header records the length as an int
+    return Math.min(new LsbEngine(flagCode, bitsPerChannel).capacity(pixelCount), Integer.MAX_VALUE);
+  }
+
+  /**
+   * This method checks that a payload of length bytes fits in the image when
+   * concealed with flags.
+   *
+   * @param length
+   * @param flags
+   *
+   * @throws IllegalArgumentException if it does not fit, or the flags are
+   *                                  invalid
+   */
+  public void requireFits(long length, String flags) {
+    requireFits(length, PayloadCodec.NONE, flags);
+  }
+
+  /**
+   * This method checks that a payload of length bytes can fit in the image
+   * when encoded with codec and concealed with flags. A payload that may be
+   * compressed is only turned away when it can't fit at the smallest size
+   * the codec could encode it to (see PayloadCodec.minEncodedLength()).
+   *
+   * @param length
+   * @param codec  - the codec, or null if PayloadCodec.choose() picks one
+   * @param flags
+   *
+   * @throws IllegalArgumentException if it can't fit, or the flags are
+   *                                  invalid
+   */
+  public void requireFits(long length, PayloadCodec codec, String flags) {
+    long capacity = capacity(flags);
+    long least = PayloadCodec.minEncodedLength(codec, length);
+    if (least > capacity) {
+      throw new IllegalArgumentException("The payload of " + length + " bytes does not fit in "
+        + path + ", which holds " + capacity + " bytes with " + flags
+        + (least < length ? ", even compressed" : ""));
+    }
+  }
+
+  /**
+   * This method returns the capacity of the image for every set of flags and
+   * number of bits per color, as a table with one line per set of flags.
+   *
+   * @return
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.ROOT, "%s: %d x %d pixels%s, bytes of payload it holds%n",
+      path, width, height, gray ? " of gray (3 samples to a pixel)" : alpha ? " with alpha" : ""));
+    report.append(String.format(Locale.ROOT, "%-6s", "flags"));
+    for (int bits = 1; bits <= LsbEngine.MAX_BITS; bits++) {
+      report.append(String.format(Locale.ROOT, "%14s", bits + (bits == 1 ? " bit" : " bits")));
+    }
+    String[] rows = FLAGS;
+    if (alpha) {
+      rows = Arrays.copyOf(FLAGS, FLAGS.length + ALPHA_FLAGS.length);
+      System.arraycopy(ALPHA_FLAGS, 0, rows, FLAGS.length, ALPHA_FLAGS.length);
+    }
+    for (String flags : rows) {
+      report.append(String.format(Locale.ROOT, "%n%-6s", flags));
+      for (int bits = 1; bits <= LsbEngine.MAX_BITS; bits++) {
+        report.append(String.format(Locale.ROOT, "%14d", capacity(flags + bits)));
+      }
+    }
+    return report.toString();
+  }
+
+  /**
+   * This method reads the width, height and layout of the image from its
+   * header.
+   */
+  private void readHeader(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new IOException("The image could not be read: " + file);
+    }
+    String name = file.getName().toLowerCase(Locale.ROOT);
+    if (name.endsWith("." + StegImage.FORMAT_QOI)) {
+      Dimension size = QoiCodec.size(file);
+      width = size.width;
+      height = size.height;
+      alpha = QoiCodec.hasAlpha(file);
+      return;
+    }
+    if (name.endsWith("." + StegImage.FORMAT_PPM) || name.endsWith("." + StegImage.FORMAT_PAM)) {
+      // mapping reads only the header; the pixels are paged in when used
+      MappedCarrier mapped = MappedCarrier.open(file);
+      if (mapped != null) {
+        width = mapped.getWidth();
+        height = mapped.getHeight();
+        alpha = mapped.hasAlpha();
+        return;
+      }
+    }
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+      if (readers == null || !readers.hasNext()) {
+        throw new IOException("The image could not be read: " + file);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        // the first type is the one the image is read as
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types.hasNext()) {
+          ColorModel colorModel = types.next().getColorModel();
+          gray = StegImage.isGray(colorModel);
+          alpha = colorModel.hasAlpha() && !gray;
+        }
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * This class is where StegImage, Steganografier and the other library
+ * classes send their progress and error messages, instead of printing them
+ * straight to System.out. Messages below the level set with setLevel() are
+ * dropped before they are built into a line; the rest go to the sink set with
+ * setSink().
+ * <p>
+ * The default sink, CONSOLE, prints every message to System.out as it always
+ * was, with "Error: " or "Warning: " in front of errors and warnings. Long
+ * running callers (the servers) turn the level up to WARN so a busy server
+ * does not print a line for every image.
+ */
+
+import java.util.Locale;
+
+class Log {
+
+  enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF
+  }
+
+  /**
+   * Where the messages go. A sink can be called from many threads at once.
+   */
+  interface Sink {
+    void log(Level level, String message);
+  }
+
+  static final Sink CONSOLE = (level, message) -> {
+    if (level == Level.ERROR) {
+      System.out.println("Error: " + message);
+    } else if (level == Level.WARN) {
+      System.out.println("Warning: " + message);
+    } else {
+      System.out.println(message);
+    }
+  };
+
+  private static volatile Sink sink = CONSOLE;
+  private static volatile Level level = Level.INFO;
+
+  private Log() {
+  }
+
+  public static void setSink(Sink sink) {
+    Log.sink = sink;
+  }
+
+  public static void setLevel(Level level) {
+    Log.level = level;
+  }
+
+  /**
+   * This method sets the level by its name, in any case.
+   *
+   * @param name - debug, info, warn, error or off
+   *
+   * @throws IllegalArgumentException if the name is not a level
+   */
+  public static void setLevel(String name) {
+    try {
+      setLevel(Level.valueOf(name.toUpperCase(Locale.ROOT)));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("the log level must be debug, info, warn, error or off - "
+        + name);
+    }
+  }
+
+  public static boolean isEnabled(Level messageLevel) {
+    return messageLevel != Level.OFF && messageLevel.compareTo(level) >= 0;
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message);
+  }
+
+  public static void warn(String message) {
+    log(Level.WARN, message);
+  }
+
+  public static void error(String message) {
+    log(Level.ERROR, message);
+  }
+
+  public static void log(Level messageLevel, String message) {
+    if (isEnabled(messageLevel)) {
+      sink.log(messageLevel, message);
+    }
+  }
+
+}
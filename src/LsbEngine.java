@@ -0,0 +1,483 @@
+/**
+ * This class is the bit packing engine behind Steganografier. It writes the
+ * bits of a message straight into the packed ARGB ints of a pixel array, and
+ * reads them back out, using nothing but shifts and masks. No Color objects,
+ * binary Strings or other temporaries are created per bit or per pixel.
+ * <p>
+ * An engine is built for one of the flag codes returned by
+ * Steganografier.verifyFlags() and a number of bits per colour byte (1 to 4).
+ * The flag code decides which colour bytes of a pixel receive bits (the
+ * "slots" of the pixel), and each slot holds the next bitsPerChannel bits of
+ * the message, in R, G, B, A order. The message is packed densely, so no
+ * slot is left unused: with -rgb and 2 bits per colour byte a pixel holds 6
+ * bits.
+ * <p>
+ * The single argument constructor gives the layout the original String based
+ * encoder used, which is still needed to read images concealed without a
+ * PayloadHeader: one bit per slot, and with -rgb every letter is given 9
+ * slots (3 pixels) so the blue byte of every third pixel is left as a 0.
+ * <p>
+ * Reading works the other way around: the bits of the slots are shifted into
+ * a byte eight at a time, so a message is decoded in a single pass straight
+ * into a byte[]. For the packed layouts of more than one colour (the ones reveal
+ * reads almost all of the time) extract() does not visit the slots one by one: the low nibbles of
+ * the four colour bytes of a pixel are folded into a 16 bit index with a few
+ * shifts, and a table built once per layout (see gatherTable()) gives all the
+ * payload bits of the pixel at once, in slot order. The result is the same as
+ * that of extractScalar(), which reads the slots one by one and is kept to
+ * check it against (see LsbEngineTest).
+ * <p>
+ * Because every byte of a message lands in a known slot, a long message can be
+ * split into runs of whole groups of pixels (see bytesPerGroup()) that never
+ * share a pixel. The ForkJoinPool variants of embed() and extract() hand
+ * those runs to the threads of the pool, and give the same result as the
+ * single threaded methods.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class LsbEngine {
+
+  // Position of each colour byte inside a packed ARGB int
+  static final int ALPHA = 24;
+  static final int RED = 16;
+  static final int GREEN = 8;
+  static final int BLUE = 0;
+
+  // Largest number of low bits of a colour byte that can be used
+  static final int MAX_BITS = 4;
+
+  // The colour bytes that are written to for each flag code (see verifyFlags)
+  private static final int[][] CHANNELS = {
+    {RED, GREEN, BLUE},        // 0: -rgb
+    {RED, GREEN},              // 1: -rg
+    {RED, BLUE},               // 2: -rb
+    {GREEN, BLUE},             // 3: -gb
+    {RED},                     // 4: -r
+    {GREEN},                   // 5: -g
+    {BLUE},                    // 6: -b
+    {RED, GREEN, BLUE, ALPHA}, // 7: -rgba
+    {ALPHA},                   // 8: -a
+    {RED, ALPHA},              // 9: -ra
+    {GREEN, ALPHA},            // 10: -ga
+    {BLUE, ALPHA},             // 11: -ba
+    {RED, GREEN, ALPHA},       // 12: -rga
+    {RED, BLUE, ALPHA},        // 13: -rba
+    {GREEN, BLUE, ALPHA}       // 14: -gba
+  };
+
+  // Number of flag codes, one for each entry of CHANNELS
+  static final int FLAG_CODES = CHANNELS.length;
+
+  // Number of message bytes below which a run is not split any further
+  private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  // The gather tables of the packed layouts, by flagCode * MAX_BITS + bits - 1,
+  // each built the first time an engine of its layout extracts. The array is
+  // atomic so that a table set by one thread is seen whole by the others.
+  private static final AtomicReferenceArray<char[]> GATHER =
+    new AtomicReferenceArray<>(FLAG_CODES * MAX_BITS);
+
+  // Layouts of the PayloadHeader, by flag code: one bit in every slot of every
+  // pixel
+  private static final LsbEngine[] HEADERS = new LsbEngine[FLAG_CODES];
+
+  static {
+    for (int i = 0; i < FLAG_CODES; i++) {
+      HEADERS[i] = new LsbEngine(i, 1, 8);
+    }
+  }
+
+  private final int flagCode;
+  private final int[] shifts;
+  // Number of low bits of each slot that are used
+  private final int bits;
+  // Number of bits a message byte takes up, 9 for the original -rgb layout
+  private final int bitsPerByte;
+
+  /**
+   * Creates the engine for the original layout of a flag code, one bit per
+   * colour byte.
+   *
+   * @param flagCode - a code returned by Steganografier.verifyFlags()
+   */
+  public LsbEngine(int flagCode) {
+    // -rgb keeps the original 3 pixels per letter, leaving one slot unused
+    this(flagCode, 1, flagCode == 0 ? 9 : 8);
+  }
+
+  /**
+   * Creates the engine for a flag code that packs the message densely into
+   * the lowest bitsPerChannel bits of each colour byte.
+   *
+   * @param flagCode       - a code returned by Steganografier.verifyFlags()
+   * @param bitsPerChannel - 1 to MAX_BITS
+   */
+  public LsbEngine(int flagCode, int bitsPerChannel) {
+    this(flagCode, bitsPerChannel, 8);
+  }
+
+  private LsbEngine(int flagCode, int bits, int bitsPerByte) {
+    if (bits < 1 || bits > MAX_BITS) {
+      throw new IllegalArgumentException("Invalid number of bits per color: " + bits);
+    }
+    this.flagCode = flagCode;
+    this.shifts = channels(flagCode);
+    this.bits = bits;
+    this.bitsPerByte = bitsPerByte;
+  }
+
+  /**
+   * This method returns the LsbEngine the PayloadHeader is written with for a
+   * flag code, one bit in each of its colour bytes.
+   *
+   * @param flagCode
+   *
+   * @return
+   */
+  static LsbEngine header(int flagCode) {
+    channels(flagCode); // checks the flag code
+    return HEADERS[flagCode];
+  }
+
+  private static int[] channels(int flagCode) {
+    if (flagCode < 0 || flagCode >= CHANNELS.length) {
+      throw new IllegalArgumentException("Invalid flag code: " + flagCode);
+    }
+    return CHANNELS[flagCode];
+  }
+
+  /**
+   * This method writes length bytes of the message into the pixels, starting
+   * with the first slot of pixel firstPixel. Every slot that is visited has
+   * its low bits replaced by the bits of the message, so the pixels do not
+   * have to be cleared first. The unused slot of the original -rgb layout, and
+   * whatever is left of the last slot, is written as 0's.
+   *
+   * @param pixels     - packed ARGB ints of the image
+   * @param firstPixel - index of the pixel holding the first bit
+   * @param message    - the bytes to hide
+   * @param offset     - index of the first byte of message to hide
+   * @param length     - number of bytes to hide
+   *
+   * @return the number of pixels that were written to
+   */
+  public int embed(int[] pixels, int firstPixel, byte[] message, int offset, int length) {
+    int channels = shifts.length;
+    int mask = (1 << bits) - 1;
+    // the padding bit of the original -rgb layout sits below the 8 bits
+    int pad = bitsPerByte - 8;
+    int pixel = firstPixel;
+    int slot = 0;
+    int pending = 0;
+    int pendingBits = 0;
+    for (int i = offset; i < offset + length; i++) {
+      pending = (pending << bitsPerByte) | ((message[i] & 0xFF) << pad);
+      pendingBits += bitsPerByte;
+      while (pendingBits >= bits) {
+        pendingBits -= bits;
+        int shift = shifts[slot];
+        pixels[pixel] = (pixels[pixel] & ~(mask << shift)) | (((pending >>> pendingBits) & mask) << shift);
+        if (++slot == channels) {
+          slot = 0;
+          pixel++;
+        }
+      }
+    }
+    if (pendingBits > 0) {
+      int shift = shifts[slot];
+      pixels[pixel] = (pixels[pixel] & ~(mask << shift)) | (((pending << (bits - pendingBits)) & mask) << shift);
+      if (++slot == channels) {
+        slot = 0;
+        pixel++;
+      }
+    }
+    return pixel - firstPixel + (slot == 0 ? 0 : 1);
+  }
+
+  /**
+   * This method reads exactly length bytes back out of the pixels, starting
+   * with the first slot of pixel firstPixel. Only the pixels holding those
+   * bytes are looked at.
+   *
+   * @param pixels     - packed ARGB ints of the image
+   * @param firstPixel - index of the pixel holding the first bit
+   * @param out        - array the bytes are read into
+   * @param offset     - index in out of the first byte
+   * @param length     - number of bytes to read
+   *
+   * @return the number of pixels that were read from
+   */
+  public int extract(int[] pixels, int firstPixel, byte[] out, int offset, int length) {
+    if (bitsPerByte != 8 || shifts.length == 1) {
+      // a single colour gains nothing from the table, it is one shift either way
+      return extractScalar(pixels, firstPixel, out, offset, length);
+    }
+    char[] gather = gatherTable();
+    int bitsPerPixel = shifts.length * bits;
+    int pixel = firstPixel;
+    int pending = 0;
+    int pendingBits = 0;
+    for (int i = offset; i < offset + length; i++) {
+      while (pendingBits < 8) {
+        // at most 7 bits are left over, and a pixel adds at most 16
+        pending = (pending << bitsPerPixel) | gather[gatherIndex(pixels[pixel++])];
+        pendingBits += bitsPerPixel;
+      }
+      pendingBits -= 8;
+      out[i] = (byte) (pending >>> pendingBits);
+    }
+    return pixel - firstPixel;
+  }
+
+  /**
+   * This method is extract(), reading the slots one at a time. It is what
+   * extract() does for the original layout and for a single colour, and what
+   * its result is checked against.
+   *
+   * @return the number of pixels that were read from
+   *
+   * @see #extract(int[], int, byte[], int, int)
+   */
+  int extractScalar(int[] pixels, int firstPixel, byte[] out, int offset, int length) {
+    int channels = shifts.length;
+    int mask = (1 << bits) - 1;
+    int pad = bitsPerByte - 8;
+    int pixel = firstPixel;
+    int slot = 0;
+    int pending = 0;
+    int pendingBits = 0;
+    for (int i = offset; i < offset + length; i++) {
+      while (pendingBits < bitsPerByte) {
+        pending = (pending << bits) | ((pixels[pixel] >>> shifts[slot]) & mask);
+        pendingBits += bits;
+        if (++slot == channels) {
+          slot = 0;
+          pixel++;
+        }
+      }
+      pendingBits -= bitsPerByte;
+      out[i] = (byte) (pending >>> pendingBits >>> pad);
+    }
+    return pixel - firstPixel + (slot == 0 ? 0 : 1);
+  }
+
+  /**
+   * This method folds the low nibbles of the alpha, red, green and blue bytes
+   * of a pixel into a 16 bit index, in that order.
+   */
+  private static int gatherIndex(int argb) {
+    int nibbles = argb & 0x0F0F0F0F;
+    // green and blue land in the low byte, alpha and red in the third
+    int folded = nibbles | nibbles >>> 4;
+    return (folded & 0xFF) | (folded >>> 8 & 0xFF00);
+  }
+
+  /**
+   * This method returns the gather table of this engine's packed layout: for
+   * every index of gatherIndex(), the low bits of the selected colour bytes
+   * one after the other, in slot order. A table takes 128 KB and is built the
+   * first time it is needed.
+   */
+  private char[] gatherTable() {
+    int key = flagCode * MAX_BITS + bits - 1;
+    char[] table = GATHER.get(key);
+    if (table == null) {
+      table = new char[1 << 16];
+      int mask = (1 << bits) - 1;
+      for (int index = 0; index < table.length; index++) {
+        // the nibble of each colour byte sits at a quarter of its shift
+        int gathered = 0;
+        for (int shift : shifts) {
+          gathered = (gathered << bits) | ((index >>> (shift / 2)) & mask);
+        }
+        table[index] = (char) gathered;
+      }
+      // threads that race here build the same table; all of them use the one
+      // set first
+      if (!GATHER.compareAndSet(key, null, table)) {
+        table = GATHER.get(key);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * This method is embed(), with the bytes split into runs that are written by
+   * the threads of pool. If pool is null the bytes are written on this thread.
+   *
+   * @return the number of pixels that were written to
+   */
+  public int embed(ForkJoinPool pool, int[] pixels, int firstPixel, byte[] message, int offset, int length) {
+    if (pool == null || length <= PARALLEL_THRESHOLD) {
+      return embed(pixels, firstPixel, message, offset, length);
+    }
+    pool.invoke(new RunTask(this, true, pixels, firstPixel, message, offset, length));
+    return (int) pixelsFor(length);
+  }
+
+  /**
+   * This method is extract(), with the bytes split into runs that are read by
+   * the threads of pool. If pool is null the bytes are read on this thread.
+   *
+   * @return the number of pixels that were read from
+   */
+  public int extract(ForkJoinPool pool, int[] pixels, int firstPixel, byte[] out, int offset, int length) {
+    if (pool == null || length <= PARALLEL_THRESHOLD) {
+      return extract(pixels, firstPixel, out, offset, length);
+    }
+    pool.invoke(new RunTask(this, false, pixels, firstPixel, out, offset, length));
+    return (int) pixelsFor(length);
+  }
+
+  /**
+   * This method returns the number of bytes in the smallest run of bytes that
+   * fills a whole number of pixels. Payloads that are split into chunks of a
+   * multiple of this size can be written chunk by chunk, since every chunk
+   * then starts on the first slot of a pixel.
+   *
+   * @return
+   */
+  public int bytesPerGroup() {
+    return lcm(bitsPerByte, shifts.length * bits) / bitsPerByte;
+  }
+
+  /**
+   * This method returns the number of pixels that bytesPerGroup() bytes fill.
+   *
+   * @return
+   */
+  public int pixelsPerGroup() {
+    return lcm(bitsPerByte, shifts.length * bits) / (shifts.length * bits);
+  }
+
+  private static int lcm(int a, int b) {
+    int x = a;
+    int y = b;
+    while (y != 0) {
+      int t = x % y;
+      x = y;
+      y = t;
+    }
+    return a / x * b;
+  }
+
+  /**
+   * This method returns the number of pixels needed to hold length bytes.
+   *
+   * @param length
+   *
+   * @return
+   */
+  public long pixelsFor(long length) {
+    int bitsPerPixel = shifts.length * bits;
+    return (length * bitsPerByte + bitsPerPixel - 1) / bitsPerPixel;
+  }
+
+  /**
+   * This method returns the number of bytes pixelCount pixels can hold, the
+   * inverse of pixelsFor().
+   *
+   * @param pixelCount
+   *
+   * @return
+   */
+  public long capacity(long pixelCount) {
+    return Math.max(0, pixelCount) * shifts.length * bits / bitsPerByte;
+  }
+
+  /**
+   * This method reads bytes back out of the pixels, starting with the first
+   * slot of pixel firstPixel, until a 0 byte is found or the pixels run out.
+   * The 0 byte is the end of the message, because everything after a
+   * concealed message has had its lowest bits cleared.
+   *
+   * @param pixels     - packed ARGB ints of the image
+   * @param firstPixel - index of the pixel holding the first bit
+   *
+   * @return the bytes of the message, without the terminating 0
+   */
+  public byte[] extractTerminated(int[] pixels, int firstPixel) {
+    int channels = shifts.length;
+    int mask = (1 << bits) - 1;
+    int capacity = (int) ((long) (pixels.length - firstPixel) * channels * bits / bitsPerByte);
+    byte[] message = new byte[Math.min(capacity, 256)];
+    int length = 0;
+    int pixel = firstPixel;
+    int slot = 0;
+    int pending = 0;
+    int pendingBits = 0;
+    while (length < capacity) {
+      while (pendingBits < bitsPerByte) {
+        pending = (pending << bits) | ((pixels[pixel] >>> shifts[slot]) & mask);
+        pendingBits += bits;
+        if (++slot == channels) {
+          slot = 0;
+          pixel++;
+        }
+      }
+      pendingBits -= bitsPerByte;
+      // drop the padding bit that sits below the 8 bits of the letter
+      int letter = (pending >>> pendingBits >>> (bitsPerByte - 8)) & 0xFF;
+      if (letter == 0) {
+        break; // if we read this byte, we are at the end of the message.
+      }
+      if (length == message.length) {
+        message = Arrays.copyOf(message, (int) Math.min(capacity, 2L * length));
+      }
+      message[length++] = (byte) letter;
+    }
+    return length == message.length ? message : Arrays.copyOf(message, length);
+  }
+
+  /**
+   * This task embeds or extracts a run of bytes. Runs longer than
+   * PARALLEL_THRESHOLD are cut in two at a group boundary, so both halves
+   * start on the first slot of their own pixel and never touch the same
+   * pixel.
+   */
+  private static class RunTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LsbEngine engine;
+    private final boolean embed;
+    private final int[] pixels;
+    private final int firstPixel;
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    RunTask(LsbEngine engine, boolean embed, int[] pixels, int firstPixel, byte[] bytes,
+            int offset, int length) {
+      this.engine = engine;
+      this.embed = embed;
+      this.pixels = pixels;
+      this.firstPixel = firstPixel;
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    protected void compute() {
+      int groupBytes = engine.bytesPerGroup();
+      int half = length / groupBytes / 2 * groupBytes;
+      if (length <= PARALLEL_THRESHOLD || half == 0) {
+        if (embed) {
+          engine.embed(pixels, firstPixel, bytes, offset, length);
+        } else {
+          engine.extract(pixels, firstPixel, bytes, offset, length);
+        }
+        return;
+      }
+      int middlePixel = firstPixel + half / groupBytes * engine.pixelsPerGroup();
+      invokeAll(new RunTask(engine, embed, pixels, firstPixel, bytes, offset, half),
+        new RunTask(engine, embed, pixels, middlePixel, bytes, offset + half, length - half));
+    }
+  }
+
+}
@@ -0,0 +1,346 @@
+/**
+ * This class is a small LZ77 compressor in the style of LZ4: it only looks
+ * for repeats of 4 or more bytes through a hash table of recent positions,
+ * and writes literals and matches byte aligned, so it compresses and
+ * decompresses several times faster than deflate, at a lower ratio.
+ * <p>
+ * The data is cut into blocks of at most BLOCK_SIZE bytes, each compressed on
+ * its own and written as a 4 byte big endian header followed by the block.
+ * The header holds the length of the block, with RAW set when the block is
+ * stored as it is because it did not get any smaller. A compressed block is a
+ * series of sequences, each:
+ * <p>
+ * token : the number of literals in the high nibble and the match length
+ * less 4 in the low nibble; a nibble of 15 is followed by bytes of 255 and a
+ * last byte below 255 that are all added to it
+ * <p>
+ * literals : the bytes to copy as they are
+ * <p>
+ * offset : 2 bytes, little endian, how far back the match starts (1 to
+ * 65535)
+ * <p>
+ * The last sequence of a block has literals only, and no offset or match.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+class LzCodec {
+
+  static final int BLOCK_SIZE = 1 << 16;
+
+  // Bit of a block header set when the block is stored uncompressed
+  private static final int RAW = 0x80000000;
+
+  private static final int MIN_MATCH = 4;
+  // Matches may not start within the last bytes of a block, which always
+  // end up as literals
+  private static final int END_LITERALS = 12;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_BITS = 14;
+
+  private LzCodec() {
+  }
+
+  /**
+   * This method compresses length bytes of src into dst.
+   *
+   * @param src
+   * @param length - at most BLOCK_SIZE
+   * @param dst    - at least maxCompressedLength(length) bytes
+   *
+   * @return the number of bytes written to dst
+   */
+  static int compress(byte[] src, int length, byte[] dst) {
+    int[] table = new int[1 << HASH_BITS]; // position + 1 of the last 4 bytes with each hash
+    int anchor = 0;
+    int out = 0;
+    int i = 0;
+    int limit = length - END_LITERALS;
+    while (i < limit) {
+      int sequence = readInt(src, i);
+      int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+      int candidate = table[hash] - 1;
+      table[hash] = i + 1;
+      if (candidate < 0 || i - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+        // step faster through data that does not match, like LZ4 does
+        i += 1 + ((i - anchor) >>> 6);
+        continue;
+      }
+      int matchLength = MIN_MATCH;
+      int matchLimit = length - END_LITERALS + MIN_MATCH;
+      while (i + matchLength < matchLimit && src[candidate + matchLength] == src[i + matchLength]) {
+        matchLength++;
+      }
+      out = writeSequence(src, anchor, i - anchor, i - candidate, matchLength, dst, out);
+      i += matchLength;
+      anchor = i;
+    }
+    return writeSequence(src, anchor, length - anchor, 0, 0, dst, out);
+  }
+
+  /**
+   * This method returns the most bytes compress() can write for length bytes
+   * of input.
+   *
+   * @param length
+   *
+   * @return
+   */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * This method decompresses a block.
+   *
+   * @param src
+   * @param length - the length of the block in src
+   * @param dst    - big enough for the decompressed block
+   *
+   * @return the number of bytes written to dst
+   *
+   * @throws IllegalArgumentException if the block is damaged
+   */
+  static int decompress(byte[] src, int length, byte[] dst) {
+    int in = 0;
+    int out = 0;
+    try {
+      while (in < length) {
+        int token = src[in++] & 0xFF;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            b = src[in++] & 0xFF;
+            literals += b;
+          } while (b == 255);
+        }
+        if (in + literals > length || out + literals > dst.length) {
+          throw damaged();
+        }
+        System.arraycopy(src, in, dst, out, literals);
+        in += literals;
+        out += literals;
+        if (in == length) {
+          break; // the last sequence has no match
+        }
+        int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+        in += 2;
+        int matchLength = token & 0x0F;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[in++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        if (offset == 0 || offset > out || out + matchLength > dst.length) {
+          throw damaged();
+        }
+        // byte by byte, since the match may overlap the bytes it is copying
+        for (int from = out - offset, end = out + matchLength; out < end; ) {
+          dst[out++] = dst[from++];
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw damaged();
+    }
+    return out;
+  }
+
+  /**
+   * This method returns a stream that reads in and hands out its bytes
+   * compressed, a block at a time.
+   *
+   * @param in
+   *
+   * @return
+   */
+  static InputStream encode(InputStream in) {
+    return new Encoder(in);
+  }
+
+  /**
+   * This method returns a stream that takes compressed blocks and writes
+   * them to out decompressed. Closing it checks that the last block was
+   * whole, but does not close out.
+   *
+   * @param out
+   *
+   * @return
+   */
+  static OutputStream decode(OutputStream out) {
+    return new Decoder(out);
+  }
+
+  private static int writeSequence(byte[] src, int start, int literals, int offset,
+                                   int matchLength, byte[] dst, int out) {
+    int token = out++;
+    int literalNibble = Math.min(literals, 15);
+    int matchNibble = matchLength == 0 ? 0 : Math.min(matchLength - MIN_MATCH, 15);
+    dst[token] = (byte) (literalNibble << 4 | matchNibble);
+    if (literalNibble == 15) {
+      out = writeLength(literals - 15, dst, out);
+    }
+    System.arraycopy(src, start, dst, out, literals);
+    out += literals;
+    if (matchLength == 0) {
+      return out;
+    }
+    dst[out++] = (byte) offset;
+    dst[out++] = (byte) (offset >>> 8);
+    if (matchNibble == 15) {
+      out = writeLength(matchLength - MIN_MATCH - 15, dst, out);
+    }
+    return out;
+  }
+
+  private static int writeLength(int length, byte[] dst, int out) {
+    while (length >= 255) {
+      dst[out++] = (byte) 255;
+      length -= 255;
+    }
+    dst[out++] = (byte) length;
+    return out;
+  }
+
+  private static int readInt(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16
+      | (bytes[i + 3] & 0xFF) << 24;
+  }
+
+  private static IllegalArgumentException damaged() {
+    return new IllegalArgumentException("The payload is damaged: an LZ block is invalid");
+  }
+
+  private static class Encoder extends InputStream {
+
+    private final InputStream in;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] scratch = new byte[maxCompressedLength(BLOCK_SIZE)];
+    private final byte[] buffer = new byte[4 + maxCompressedLength(BLOCK_SIZE)];
+    private int position;
+    private int limit;
+
+    Encoder(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == limit && !fill()) {
+        return -1;
+      }
+      return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (position == limit && !fill()) {
+        return -1;
+      }
+      int n = Math.min(length, limit - position);
+      System.arraycopy(buffer, position, bytes, offset, n);
+      position += n;
+      return n;
+    }
+
+    /**
+     * This method reads and compresses the next block.
+     *
+     * @return false at the end of in
+     */
+    private boolean fill() throws IOException {
+      int read = in.readNBytes(block, 0, block.length);
+      if (read == 0) {
+        return false;
+      }
+      int compressed = compress(block, read, scratch);
+      int header;
+      if (compressed < read) {
+        System.arraycopy(scratch, 0, buffer, 4, compressed);
+        header = compressed;
+      } else {
+        System.arraycopy(block, 0, buffer, 4, read);
+        header = read | RAW;
+      }
+      buffer[0] = (byte) (header >>> 24);
+      buffer[1] = (byte) (header >>> 16);
+      buffer[2] = (byte) (header >>> 8);
+      buffer[3] = (byte) header;
+      position = 0;
+      limit = 4 + (header & ~RAW);
+      return true;
+    }
+  }
+
+  private static class Decoder extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] header = new byte[4];
+    private int headerCount;
+    private final byte[] block = new byte[maxCompressedLength(BLOCK_SIZE)];
+    private int blockLength;
+    private int blockCount;
+    private boolean raw;
+    private final byte[] decoded = new byte[BLOCK_SIZE];
+
+    Decoder(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (headerCount < 4) {
+          header[headerCount++] = bytes[offset++];
+          length--;
+          if (headerCount == 4) {
+            int value = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16
+              | (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+            raw = (value & RAW) != 0;
+            blockLength = value & ~RAW;
+            if (blockLength == 0 || blockLength > block.length || raw && blockLength > BLOCK_SIZE) {
+              throw damaged();
+            }
+            blockCount = 0;
+          }
+          continue;
+        }
+        int n = Math.min(length, blockLength - blockCount);
+        System.arraycopy(bytes, offset, block, blockCount, n);
+        blockCount += n;
+        offset += n;
+        length -= n;
+        if (blockCount == blockLength) {
+          if (raw) {
+            out.write(block, 0, blockLength);
+          } else {
+            out.write(decoded, 0, decompress(block, blockLength, decoded));
+          }
+          headerCount = 0;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (headerCount != 0) {
+        throw new IllegalArgumentException("The payload is damaged: the last LZ block is cut short");
+      }
+      out.flush();
+    }
+  }
+
+}
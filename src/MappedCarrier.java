@@ -0,0 +1,403 @@
+/**
+ * This class reaches the pixels of an uncompressed image file through a
+ * memory mapping instead of decoding the whole image onto the heap, so images
+ * far larger than the heap (gigapixel scans) can carry a payload. It handles
+ * binary PPM (P6), PAM (P7, RGB or RGB_ALPHA) and uncompressed 24 and 32 bit
+ * BMP, all with 8 bit samples.
+ * <p>
+ * The file is mapped privately: rows written with writeRows() only change
+ * the copy of their pages in memory, and the file itself is never written.
+ * Files that can't be written to (which a private mapping needs, even though
+ * nothing is written) are mapped read only, so they can only be revealed.
+ * save() then copies the file and writes just the rows that changed into the
+ * copy, so only the pages the payload touches are dirtied and flushed.
+ * <p>
+ * Files over 1 GiB are mapped in several segments of whole rows, since a
+ * single mapping can't be larger than 2 GiB.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+class MappedCarrier {
+
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final int MAX_HEADER = 4096;
+
+  private final File file;
+  private final String format;
+  private final int width;
+  private final int height;
+  private final int bytesPerPixel;
+  private final boolean alpha;
+  // True for BMP, which stores b, g, r and its rows from the bottom up
+  private final boolean bgr;
+  private final boolean bottomUp;
+  private final long dataOffset;
+  private final int rowStride;
+  private final int rowsPerSegment;
+  private final MappedByteBuffer[] segments;
+  private final byte[] row;
+  private final byte[] oldRow;
+  // Rows of the image, from firstChanged up to endChanged, that were changed
+  private int firstChanged = Integer.MAX_VALUE;
+  private int endChanged;
+
+  private MappedCarrier(File file, String format, int width, int height, int bytesPerPixel,
+                        boolean alpha, boolean bgr, boolean bottomUp, long dataOffset, int rowStride)
+    throws IOException {
+    this.file = file;
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    this.bytesPerPixel = bytesPerPixel;
+    this.alpha = alpha;
+    this.bgr = bgr;
+    this.bottomUp = bottomUp;
+    this.dataOffset = dataOffset;
+    this.rowStride = rowStride;
+    this.rowsPerSegment = Math.max(1, SEGMENT_SIZE / rowStride);
+    this.row = new byte[rowStride];
+    this.oldRow = new byte[rowStride];
+    this.segments = new MappedByteBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+    boolean writable = Files.isWritable(file.toPath());
+    try (FileChannel channel = writable
+      ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+      : FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < dataOffset + (long) rowStride * height) {
+        throw new IOException("The image file is truncated: " + file);
+      }
+      for (int i = 0; i < segments.length; i++) {
+        int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+        segments[i] = channel.map(writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY,
+          dataOffset + (long) i * rowsPerSegment * rowStride, (long) rows * rowStride);
+      }
+    }
+  }
+
+  /**
+   * This method maps the image file if it is one of the formats this class
+   * handles.
+   *
+   * @param file
+   *
+   * @return the mapped image, or null if the file is in any other format, in
+   * which case it should be read with ImageIO
+   *
+   * @throws IOException if the file can't be read or its header is damaged
+   */
+  public static MappedCarrier open(File file) throws IOException {
+    String name = file.getName().toLowerCase(Locale.ROOT);
+    if (!name.endsWith("." + StegImage.FORMAT_PPM) && !name.endsWith("." + StegImage.FORMAT_PAM)
+      && !name.endsWith("." + StegImage.FORMAT_BMP)) {
+      return null;
+    }
+    byte[] header;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_HEADER, channel.size()));
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // keep reading until the buffer is full or the file ends
+      }
+      header = Arrays.copyOf(buffer.array(), buffer.position());
+    }
+    if (header.length >= 2 && header[0] == 'B' && header[1] == 'M') {
+      return openBmp(file, header);
+    } else if (header.length >= 2 && header[0] == 'P' && (header[1] == '6' || header[1] == '7')) {
+      return openPnm(file, header);
+    }
+    return null;
+  }
+
+  /**
+   * This method maps a BMP, or returns null if it is not stored as plain 24
+   * or 32 bit pixels.
+   */
+  private static MappedCarrier openBmp(File file, byte[] header) throws IOException {
+    if (header.length < 34) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    long dataOffset = buffer.getInt(10) & 0xFFFFFFFFL;
+    int width = buffer.getInt(18);
+    int height = buffer.getInt(22);
+    int bitsPerPixel = buffer.getShort(28);
+    int compression = buffer.getInt(30);
+    if (compression != 0 || (bitsPerPixel != 24 && bitsPerPixel != 32) || width <= 0
+      || height == 0 || height == Integer.MIN_VALUE) {
+      return null;
+    }
+    int bytesPerPixel = bitsPerPixel / 8;
+    long rowStride = ((long) width * bytesPerPixel + 3) & ~3L; // rows are padded to 4 bytes
+    if (rowStride > Integer.MAX_VALUE) {
+      return null;
+    }
+    // the fourth byte of a 32 bit BMP without bit fields is unused, not alpha
+    return new MappedCarrier(file, StegImage.FORMAT_BMP, width, Math.abs(height), bytesPerPixel,
+      false, true, height > 0, dataOffset, (int) rowStride);
+  }
+
+  /**
+   * This method maps a PPM or PAM, or returns null if its samples are not 8
+   * bit RGB or RGB_ALPHA.
+   */
+  private static MappedCarrier openPnm(File file, byte[] header) throws IOException {
+    HeaderReader reader = new HeaderReader(header, 2);
+    int width;
+    int height;
+    int depth;
+    int maxval;
+    String format;
+    if (header[1] == '6') {
+      format = StegImage.FORMAT_PPM;
+      width = reader.nextInt();
+      height = reader.nextInt();
+      maxval = reader.nextInt();
+      depth = 3;
+      reader.position++; // the single whitespace before the pixels
+    } else {
+      format = StegImage.FORMAT_PAM;
+      width = height = depth = maxval = -1;
+      String tupleType = null;
+      for (String token = reader.nextToken(); !token.equals("ENDHDR"); token = reader.nextToken()) {
+        if (token.equals("WIDTH")) {
+          width = reader.nextInt();
+        } else if (token.equals("HEIGHT")) {
+          height = reader.nextInt();
+        } else if (token.equals("DEPTH")) {
+          depth = reader.nextInt();
+        } else if (token.equals("MAXVAL")) {
+          maxval = reader.nextInt();
+        } else if (token.equals("TUPLTYPE")) {
+          tupleType = reader.nextToken();
+        }
+      }
+      reader.skipLine();
+      if (tupleType != null && !tupleType.startsWith("RGB")) {
+        return null;
+      }
+    }
+    if (maxval != 255 || (depth != 3 && depth != 4) || width <= 0 || height <= 0
+      || (long) width * depth > Integer.MAX_VALUE) {
+      return null;
+    }
+    return new MappedCarrier(file, format, width, height, depth, depth == 4, false, false,
+      reader.position, width * depth);
+  }
+
+  public String getFormat() {
+    return format;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean hasAlpha() {
+    return alpha;
+  }
+
+  /**
+   * This method reads the packed ARGB values of a band of rows into band.
+   * Pixels without alpha are read with an alpha of 0xFF.
+   *
+   * @param firstRow
+   * @param rows
+   * @param band
+   */
+  public void readRows(int firstRow, int rows, int[] band) {
+    int n = bytesPerPixel;
+    int p = 0;
+    for (int y = firstRow; y < firstRow + rows; y++) {
+      getRow(y, row);
+      for (int i = 0; i < width * n; i += n) {
+        int r = row[bgr ? i + 2 : i] & 0xFF;
+        int g = row[i + 1] & 0xFF;
+        int b = row[bgr ? i : i + 2] & 0xFF;
+        int a = alpha ? row[i + 3] & 0xFF : 0xFF;
+        band[p++] = a << 24 | r << 16 | g << 8 | b;
+      }
+    }
+  }
+
+  /**
+   * This method writes the packed ARGB values in band to a band of rows. Rows
+   * whose bytes don't change are left alone, so their pages stay clean.
+   *
+   * @param firstRow
+   * @param rows
+   * @param band
+   *
+   * @throws IllegalStateException if the file was mapped read only
+   */
+  public void writeRows(int firstRow, int rows, int[] band) {
+    int n = bytesPerPixel;
+    int p = 0;
+    for (int y = firstRow; y < firstRow + rows; y++) {
+      getRow(y, oldRow);
+      System.arraycopy(oldRow, 0, row, 0, rowStride); // keeps the padding and unused bytes
+      for (int i = 0; i < width * n; i += n) {
+        int argb = band[p++];
+        row[bgr ? i + 2 : i] = (byte) (argb >>> 16);
+        row[i + 1] = (byte) (argb >>> 8);
+        row[bgr ? i : i + 2] = (byte) argb;
+        if (alpha) {
+          row[i + 3] = (byte) (argb >>> 24);
+        }
+      }
+      if (!Arrays.equals(row, oldRow)) {
+        if (segment(y).isReadOnly()) {
+          throw new IllegalStateException("The image can't be changed, since its file can't be"
+            + " written to: " + file);
+        }
+        segment(y).put(segmentOffset(y), row);
+        firstChanged = Math.min(firstChanged, y);
+        endChanged = Math.max(endChanged, y + 1);
+      }
+    }
+  }
+
+  /**
+   * This method saves the image to output: the file is copied and the rows
+   * that were changed are written into the copy.
+   *
+   * @param output
+   *
+   * @throws IOException if the file can't be copied or written to
+   */
+  public void save(File output) throws IOException {
+    if (!Files.exists(output.toPath()) || !Files.isSameFile(file.toPath(), output.toPath())) {
+      Files.copy(file.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+      for (int y = firstChanged; y < endChanged; y++) {
+        getRow(y, row);
+        ByteBuffer buffer = ByteBuffer.wrap(row);
+        long position = dataOffset + (long) fileRow(y) * rowStride;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * This method writes the image to out as a PPM, or as a PAM with alpha.
+   *
+   * @param image
+   * @param alpha - true to write a PAM holding the alpha of every pixel
+   * @param out
+   *
+   * @throws IOException if out can't be written to
+   */
+  public static void writePnm(StegImage image, boolean alpha, OutputStream out) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    String header = alpha
+      ? "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n"
+      : "P6\n" + width + " " + height + "\n255\n";
+    out.write(header.getBytes(StandardCharsets.US_ASCII));
+    int n = alpha ? 4 : 3;
+    BufferPool buffers = image.getBufferPool();
+    int[] band = buffers.ints(width * Math.min(height, StegImage.BAND_ROWS));
+    byte[] bytes = buffers.bytes(band.length * n);
+    for (int y = 0; y < height; y += StegImage.BAND_ROWS) {
+      int count = Math.min(StegImage.BAND_ROWS, height - y) * width;
+      image.readRows(y, count / width, band);
+      int i = 0;
+      for (int p = 0; p < count; p++) {
+        int argb = band[p];
+        bytes[i++] = (byte) (argb >>> 16);
+        bytes[i++] = (byte) (argb >>> 8);
+        bytes[i++] = (byte) argb;
+        if (alpha) {
+          bytes[i++] = (byte) (argb >>> 24);
+        }
+      }
+      out.write(bytes, 0, i);
+    }
+    out.flush();
+    buffers.release(band);
+    buffers.release(bytes);
+  }
+
+  private void getRow(int y, byte[] bytes) {
+    segment(y).get(segmentOffset(y), bytes);
+  }
+
+  private MappedByteBuffer segment(int y) {
+    return segments[fileRow(y) / rowsPerSegment];
+  }
+
+  private int segmentOffset(int y) {
+    return fileRow(y) % rowsPerSegment * rowStride;
+  }
+
+  private int fileRow(int y) {
+    return bottomUp ? height - 1 - y : y;
+  }
+
+  /**
+   * This class reads the whitespace separated tokens of a PPM or PAM header,
+   * skipping comments.
+   */
+  private static class HeaderReader {
+
+    private final byte[] header;
+    private int position;
+
+    HeaderReader(byte[] header, int position) {
+      this.header = header;
+      this.position = position;
+    }
+
+    String nextToken() throws IOException {
+      while (position < header.length && (Character.isWhitespace(header[position])
+        || header[position] == '#')) {
+        if (header[position] == '#') {
+          skipLine();
+        } else {
+          position++;
+        }
+      }
+      int start = position;
+      while (position < header.length && !Character.isWhitespace(header[position])) {
+        position++;
+      }
+      if (start == position || position == header.length) {
+        throw new IOException("Damaged image header");
+      }
+      return new String(header, start, position - start, StandardCharsets.US_ASCII);
+    }
+
+    int nextInt() throws IOException {
+      try {
+        return Integer.parseInt(nextToken());
+      } catch (NumberFormatException e) {
+        throw new IOException("Damaged image header");
+      }
+    }
+
+    void skipLine() {
+      while (position < header.length && header[position++] != '\n') {
+        // skip up to and including the end of the line
+      }
+    }
+  }
+
+}
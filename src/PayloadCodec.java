@@ -0,0 +1,339 @@
+/**
+ * This enum is the stage in front of the LsbEngine that encodes the payload
+ * before it is embedded, so a payload that compresses takes fewer pixels to
+ * hide and fewer to read back. The codec used is recorded by its id in the
+ * PayloadHeader, so reveal decodes the payload without being told. The length
+ * and checksum in the header are those of the encoded bytes, the ones that are
+ * actually in the pixels.
+ * <p>
+ * NONE : the payload bytes are stored as they are
+ * <p>
+ * DEFLATE : a zlib stream (java.util.zip), for the best ratio
+ * <p>
+ * LZ : LzCodec, a few times faster than DEFLATE to encode and decode, at a
+ * lower ratio
+ * <p>
+ * choose() picks a codec by the size of the payload when none is forced.
+ * <p>
+ * The header only records the length of the encoded bytes, and a few
+ * megabytes of DEFLATE or LZ can decode to gigabytes, so decoding stops with
+ * an IllegalArgumentException once a payload grows past a maximum length
+ * (defaultMaxLength() unless told otherwise). A payload stored as it is never
+ * grows, and is not held to it.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipException;
+
+enum PayloadCodec {
+  NONE(PayloadHeader.CODEC_NONE), DEFLATE(PayloadHeader.CODEC_DEFLATE), LZ(PayloadHeader.CODEC_LZ);
+
+  // Payloads shorter than this are stored as they are, since they would
+  // barely shrink
+  static final int MIN_LENGTH = 512;
+  // Payloads at least this long are encoded with LZ, for speed, when it
+  // shrinks them by LZ_SAVING, so what is left is small either way; the rest
+  // with DEFLATE, whose output is often half the size. It is also the most of
+  // a payload choose() needs to see.
+  static final int LARGE_LENGTH = 1 << 18;
+  // A payload must shrink by at least this much to be worth encoding
+  private static final double MIN_SAVING = 0.1;
+  private static final double LZ_SAVING = 0.75;
+  // The most a codec can shrink a payload by: deflate codes a match of 258
+  // bytes in 2 bits at best, and LzCodec adds 255 to a match for each byte
+  private static final int DEFLATE_MAX_RATIO = 1032;
+  private static final int LZ_MAX_RATIO = 255;
+
+  private final int id;
+
+  PayloadCodec(int id) {
+    this.id = id;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * This method returns the codec with an id read from a PayloadHeader.
+   *
+   * @param id
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if no codec has the id
+   */
+  public static PayloadCodec forId(int id) {
+    for (PayloadCodec codec : values()) {
+      if (codec.id == id) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported payload codec: " + id);
+  }
+
+  /**
+   * This method returns the codec with a name, in any case.
+   *
+   * @param name - none, deflate or lz
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if no codec has the name
+   */
+  public static PayloadCodec forName(String name) {
+    try {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("the codec must be none, deflate or lz - " + name);
+    }
+  }
+
+  /**
+   * This method picks the codec for a payload from its length and how much
+   * LZ shrinks its first block: NONE below MIN_LENGTH bytes or when the block
+   * does not shrink by MIN_SAVING, LZ from LARGE_LENGTH on when it shrinks by
+   * LZ_SAVING, and DEFLATE otherwise.
+   *
+   * @param payload - the payload, or at least its first LARGE_LENGTH bytes
+   * @param length  - the length of the payload, or of what was read of it
+   *
+   * @return
+   */
+  public static PayloadCodec choose(byte[] payload, int length) {
+    if (length < MIN_LENGTH) {
+      return NONE;
+    }
+    int sample = Math.min(length, LzCodec.BLOCK_SIZE);
+    int compressed = LzCodec.compress(payload, sample, new byte[LzCodec.maxCompressedLength(sample)]);
+    if (compressed > sample * (1 - MIN_SAVING)) {
+      return NONE;
+    }
+    return length >= LARGE_LENGTH && compressed <= sample * (1 - LZ_SAVING) ? LZ : DEFLATE;
+  }
+
+  /**
+   * This method returns the fewest bytes a payload of length bytes can be
+   * encoded to with codec, so a payload that can't fit even at that size is
+   * turned away before anything is read. It is the length itself for NONE,
+   * and for a payload choose() always stores as it is.
+   *
+   * @param codec  - the codec, or null if choose() picks one
+   * @param length
+   *
+   * @return
+   */
+  public static long minEncodedLength(PayloadCodec codec, long length) {
+    if (codec == null) {
+      codec = length < MIN_LENGTH ? NONE : DEFLATE;
+    }
+    switch (codec) {
+      case DEFLATE:
+        return length / DEFLATE_MAX_RATIO;
+      case LZ:
+        return length / LZ_MAX_RATIO;
+      default:
+        return length;
+    }
+  }
+
+  /**
+   * This method returns a stream that reads in and hands out its bytes
+   * encoded. Closing it frees what the codec holds but leaves in open.
+   *
+   * @param in
+   *
+   * @return
+   */
+  public InputStream encode(InputStream in) {
+    InputStream source = new FilterInputStream(in) {
+      @Override
+      public void close() {
+      }
+    };
+    switch (this) {
+      case DEFLATE:
+        return new DeflaterInputStream(source);
+      case LZ:
+        return LzCodec.encode(source);
+      default:
+        return source;
+    }
+  }
+
+  /**
+   * This method returns the most bytes a payload may decode to unless told
+   * otherwise: an eighth of the heap. A payload revealed into memory is held
+   * about four times over while it is decoded and turned into a string, so
+   * this keeps it from running the heap out.
+   *
+   * @return
+   */
+  public static long defaultMaxLength() {
+    return Runtime.getRuntime().maxMemory() / 8;
+  }
+
+  /**
+   * This method returns a stream that takes encoded bytes and writes them to
+   * out decoded. It must be closed once every byte has been written, which
+   * writes out what the codec still holds, but leaves out open.
+   *
+   * @param out
+   * @param maxLength - the most bytes the payload may decode to
+   *
+   * @return
+   *
+   * @see #decode(byte[], long)
+   */
+  public OutputStream decode(OutputStream out, long maxLength) {
+    // a payload stored as it is never grows, so it is not held to maxLength
+    OutputStream target = new Capped(out, this == NONE ? Long.MAX_VALUE : maxLength);
+    switch (this) {
+      case DEFLATE:
+        return new Inflating(target);
+      case LZ:
+        return LzCodec.decode(target);
+      default:
+        return target;
+    }
+  }
+
+  /**
+   * This method encodes a whole payload held in memory.
+   *
+   * @param payload
+   *
+   * @return
+   */
+  public byte[] encode(byte[] payload) {
+    if (this == NONE) {
+      return payload;
+    }
+    try (InputStream in = encode(new ByteArrayInputStream(payload))) {
+      return in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // can't happen with a byte array
+    }
+  }
+
+  /**
+   * This method decodes a whole payload held in memory.
+   *
+   * @param stored    - the bytes read out of the image
+   * @param maxLength - the most bytes the payload may decode to
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if the bytes can't be decoded, or decode
+   *                                  to more than maxLength bytes
+   */
+  public byte[] decode(byte[] stored, long maxLength) {
+    if (this == NONE) {
+      return stored;
+    }
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(stored.length * 2);
+    try (OutputStream out = decode(payload, maxLength)) {
+      out.write(stored);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // can't happen with a byte array
+    }
+    return payload.toByteArray();
+  }
+
+  /**
+   * This class writes through to out until more than maxLength bytes have
+   * been written, and throws an IllegalArgumentException instead of writing
+   * the bytes that go past it, so out never holds more. Closing it flushes
+   * out but leaves it open.
+   */
+  private static class Capped extends OutputStream {
+
+    private final OutputStream out;
+    private final long maxLength;
+    private long written;
+
+    Capped(OutputStream out, long maxLength) {
+      this.out = out;
+      this.maxLength = maxLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      count(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      count(length);
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    private void count(int length) {
+      written += length;
+      if (written > maxLength) {
+        throw new IllegalArgumentException("The payload decodes to more than the most bytes"
+          + " allowed, " + maxLength);
+      }
+    }
+  }
+
+  /**
+   * This class inflates like InflaterOutputStream, but reports a damaged
+   * stream as an IllegalArgumentException, like the other codecs.
+   */
+  private static class Inflating extends FilterOutputStream {
+
+    Inflating(OutputStream out) {
+      super(new InflaterOutputStream(out));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+      } catch (ZipException e) {
+        throw new IllegalArgumentException("The payload is damaged: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      try {
+        out.write(bytes, offset, length);
+      } catch (ZipException e) {
+        throw new IllegalArgumentException("The payload is damaged: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } catch (ZipException e) {
+        throw new IllegalArgumentException("The payload is damaged: " + e.getMessage());
+      }
+    }
+  }
+
+}
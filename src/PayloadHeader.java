@@ -0,0 +1,272 @@
+/**
+ * This class is the binary header that Steganografier writes into the image
+ * ahead of the concealed payload. It tells reveal exactly how the payload was
+ * written and how long it is, so reveal only reads the pixels that hold the
+ * payload instead of scanning the image for the end of the message.
+ * <p>
+ * The header is written into the first pixels(channelMask) pixels of the
+ * image, one bit in each of the colour bytes the payload is concealed in, so
+ * the colours the flags leave out are not changed by it either; the payload
+ * starts right after it. The reader does not know the flags, so it tries the
+ * layout of every flag code until one holds the magic and a channel mask that
+ * matches the layout (see Steganografier.readHeader()). An image concealed into twice with flags that share no colour holds both headers,
+ * and the one of the flags given to reveal is found first. Its 16 bytes are
+ * laid out as (all numbers big endian):
+ * <p>
+ * 0-3 : magic, the ASCII letters "STEG"
+ * <p>
+ * 4 : version of the header layout (VERSION)
+ * <p>
+ * 5 : channel mask, the colour bytes holding the payload (MASK_RED,
+ * MASK_GREEN, MASK_BLUE, MASK_ALPHA)
+ * <p>
+ * 6 : codec id, how the payload bytes were encoded before they were
+ * embedded (CODEC_NONE, CODEC_DEFLATE, CODEC_LZ; see PayloadCodec)
+ * <p>
+ * 7 : layout of the payload bits. The low nibble is the number of bits used
+ * in each colour byte (0 is read as 1), into which the payload is packed
+ * densely; the original layout of LsbEngine, 9 slots a byte, is only used for
+ * messages without a header. LAYOUT_CHECKSUM is set when bytes 12-15 hold a checksum, and LAYOUT_KEYED
+ * when the payload is scattered over the image with a key (see PixelScatter).
+ * <p>
+ * 8-11 : payload length in bytes, as encoded
+ * <p>
+ * 12-15 : CRC32C of the encoded payload bytes, or 0 without LAYOUT_CHECKSUM
+ */
+
+import java.nio.ByteBuffer;
+
+class PayloadHeader {
+
+  static final int MAGIC = 0x53544547; // "STEG"
+  static final int VERSION = 1;
+  static final int SIZE = 16;
+
+  // Most pixels the header takes up, in a single colour byte
+  static final int MAX_PIXELS = SIZE * 8;
+
+  // Bits of the channel mask
+  static final int MASK_RED = 4;
+  static final int MASK_GREEN = 2;
+  static final int MASK_BLUE = 1;
+  static final int MASK_ALPHA = 8;
+  static final int MASK_RGB = MASK_RED | MASK_GREEN | MASK_BLUE;
+
+  // The payload bytes are stored as they are
+  static final int CODEC_NONE = 0;
+  // The payload bytes are a zlib stream
+  static final int CODEC_DEFLATE = 1;
+  // The payload bytes are LzCodec blocks
+  static final int CODEC_LZ = 2;
+
+  // Bit of the layout byte set when the header holds the payload checksum
+  static final int LAYOUT_CHECKSUM = 0x20;
+  // Bit of the layout byte set when the payload pixels are scattered by a key
+  static final int LAYOUT_KEYED = 0x40;
+
+  // Channel mask for each flag code (see Steganografier.verifyFlags)
+  private static final int[] FLAG_CODE_MASKS = {
+    MASK_RED | MASK_GREEN | MASK_BLUE,
+    MASK_RED | MASK_GREEN,
+    MASK_RED | MASK_BLUE,
+    MASK_GREEN | MASK_BLUE,
+    MASK_RED,
+    MASK_GREEN,
+    MASK_BLUE,
+    MASK_RED | MASK_GREEN | MASK_BLUE | MASK_ALPHA,
+    MASK_ALPHA,
+    MASK_RED | MASK_ALPHA,
+    MASK_GREEN | MASK_ALPHA,
+    MASK_BLUE | MASK_ALPHA,
+    MASK_RED | MASK_GREEN | MASK_ALPHA,
+    MASK_RED | MASK_BLUE | MASK_ALPHA,
+    MASK_GREEN | MASK_BLUE | MASK_ALPHA
+  };
+
+  private final int channelMask;
+  private final int codec;
+  private final int layout;
+  private final int length;
+  private final int checksum;
+
+  /**
+   * Creates a header holding the CRC32C of the payload.
+   *
+   * @param channelMask
+   * @param codec
+   * @param layout      - the bits used in each colour byte, with LAYOUT_KEYED
+   *                    if the payload is scattered
+   * @param length
+   * @param checksum    - CRC32C of the payload bytes
+   */
+  public PayloadHeader(int channelMask, int codec, int layout, int length, long checksum) {
+    this(channelMask, codec, layout | LAYOUT_CHECKSUM, length, (int) checksum);
+  }
+
+  private PayloadHeader(int channelMask, int codec, int layout, int length, int checksum) {
+    this.channelMask = channelMask;
+    this.codec = codec;
+    this.layout = layout;
+    this.length = length;
+    this.checksum = checksum;
+  }
+
+  /**
+   * This method returns the number of pixels the header takes up when it is
+   * written into the colour bytes of a channel mask.
+   *
+   * @param channelMask
+   *
+   * @return
+   */
+  public static int pixels(int channelMask) {
+    int channels = Math.max(1, Integer.bitCount(channelMask & (MASK_RGB | MASK_ALPHA)));
+    return (SIZE * 8 + channels - 1) / channels;
+  }
+
+  /**
+   * This method returns the channel mask that matches a flag code.
+   *
+   * @param flagCode - a code returned by Steganografier.verifyFlags()
+   *
+   * @return
+   */
+  public static int maskForFlagCode(int flagCode) {
+    return FLAG_CODE_MASKS[flagCode];
+  }
+
+  /**
+   * This method returns the flag code that matches a channel mask.
+   *
+   * @param channelMask
+   *
+   * @return the flag code, or -1 if the mask does not match any flag code
+   */
+  public static int flagCodeForMask(int channelMask) {
+    for (int i = 0; i < FLAG_CODE_MASKS.length; i++) {
+      if (FLAG_CODE_MASKS[i] == channelMask) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * This method returns the flag code that matches the channel mask of this
+   * header.
+   *
+   * @return the flag code, or -1 if the mask does not match any flag code
+   */
+  public int getFlagCode() {
+    return flagCodeForMask(channelMask);
+  }
+
+  public int getChannelMask() {
+    return channelMask;
+  }
+
+  public int getCodec() {
+    return codec;
+  }
+
+  public int getBitsPerChannel() {
+    return Math.max(1, layout & 0x0F);
+  }
+
+  /**
+   * This method returns the LsbEngine that reads and writes the payload this
+   * header describes.
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if the channel mask or bit depth is not
+   *                                  supported
+   */
+  public LsbEngine engine() {
+    int flagCode = getFlagCode();
+    if (flagCode < 0) {
+      throw new IllegalArgumentException("Unsupported channel mask: " + channelMask);
+    }
+    return new LsbEngine(flagCode, getBitsPerChannel());
+  }
+
+  /**
+   * This method returns the pixel the payload starts at, right after the
+   * header.
+   *
+   * @return
+   */
+  public int getFirstPixel() {
+    return pixels(channelMask);
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public boolean isKeyed() {
+    return (layout & LAYOUT_KEYED) != 0;
+  }
+
+  public boolean hasChecksum() {
+    return (layout & LAYOUT_CHECKSUM) != 0;
+  }
+
+  /**
+   * This method returns the CRC32C of the payload, as returned by
+   * CRC32C.getValue().
+   *
+   * @return
+   */
+  public long getChecksum() {
+    return checksum & 0xFFFFFFFFL;
+  }
+
+  /**
+   * This method returns the 16 bytes of the header.
+   *
+   * @return
+   */
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+    buffer.putInt(MAGIC);
+    buffer.put((byte) VERSION);
+    buffer.put((byte) channelMask);
+    buffer.put((byte) codec);
+    buffer.put((byte) layout);
+    buffer.putInt(length);
+    buffer.putInt(checksum);
+    return buffer.array();
+  }
+
+  /**
+   * This method reads a header from the bytes that were extracted from the
+   * first pixels of an image.
+   *
+   * @param bytes
+   *
+   * @return the header, or null if the bytes do not start with the magic
+   *
+   * @throws IllegalArgumentException if the header was written by a newer
+   *                                  version or is damaged
+   */
+  public static PayloadHeader parse(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (bytes.length < SIZE || buffer.getInt() != MAGIC) {
+      return null;
+    }
+    int version = buffer.get() & 0xFF;
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported header version: " + version);
+    }
+    int channelMask = buffer.get() & 0xFF;
+    int codec = buffer.get() & 0xFF;
+    int layout = buffer.get() & 0xFF;
+    int length = buffer.getInt();
+    if (length < 0) {
+      throw new IllegalArgumentException("Invalid payload length: " + length);
+    }
+    return new PayloadHeader(channelMask, codec, layout, length, buffer.getInt());
+  }
+
+}
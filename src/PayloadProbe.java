@@ -0,0 +1,221 @@
+/**
+ * This class tells whether images carry a payload without revealing it, or
+ * even decoding them. The PayloadHeader is always in the first
+ * PayloadHeader.MAX_PIXELS pixels, so only the rows holding them are read (see
+ * StegImage(String, int)) and checked for its magic: probing an image takes
+ * a few milliseconds whatever its size, instead of the full decode and
+ * reveal it takes to find out by revealing it.
+ * <p>
+ * probeAll() probes many images at once on a pool of workers, for going
+ * through a directory of them. Every image gets a Result, which is either
+ * the header that was found, no header, or the error the image failed with.
+ * <p>
+ * Messages concealed before the header existed end with a 0 byte instead
+ * (see Steganografier.selectableDesteganographi()); nothing marks them, so
+ * they are reported as having no payload.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class PayloadProbe {
+
+  private final ExecutorService executor;
+
+  /**
+   * Creates a probe for probeAll(). Call shutdown() when done with it.
+   *
+   * @param workers - number of images probed at the same time
+   */
+  public PayloadProbe(int workers) {
+    this.executor = Executors.newFixedThreadPool(workers);
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * This method reads the PayloadHeader of the image at path, if it has one,
+   * from its first rows.
+   *
+   * @param path
+   *
+   * @return the result; an image that can't be read or has a damaged header
+   * gives a result with an error rather than an exception
+   */
+  public static Result probe(String path) {
+    long start = System.nanoTime();
+    StegImage si = new StegImage(path, PayloadHeader.MAX_PIXELS);
+    try {
+      if (!si.isLoaded()) {
+        return new Result(path, null, "The image could not be read", System.nanoTime() - start);
+      }
+      PayloadHeader header = new Steganografier(si).getPayloadHeader();
+      return new Result(path, header, null, System.nanoTime() - start);
+    } catch (IllegalArgumentException e) {
+      return new Result(path, null, e.getMessage(), System.nanoTime() - start);
+    } finally {
+      si.release();
+    }
+  }
+
+  /**
+   * This method probes the images on the workers and waits for all of them.
+   *
+   * @param paths
+   *
+   * @return the results, in the order of the paths
+   *
+   * @throws InterruptedException
+   */
+  public List<Result> probeAll(List<String> paths) throws InterruptedException {
+    List<Future<Result>> futures = new ArrayList<>();
+    for (String path : paths) {
+      Callable<Result> task = () -> probe(path);
+      futures.add(executor.submit(task));
+    }
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results.add(futures.get(i).get());
+      } catch (ExecutionException e) {
+        // probe() only fails on what it does not expect, like running out of memory
+        results.add(new Result(paths.get(i), null, String.valueOf(e.getCause()), 0));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * This method returns the paths of the images in a directory that can be
+   * read (see StegImage.isImageFile()), sorted by name. The directories in
+   * it are not looked into.
+   *
+   * @param directory
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if directory is not a directory
+   */
+  public static List<String> images(String directory) {
+    File[] files = new File(directory).listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Not a directory: " + directory);
+    }
+    Arrays.sort(files);
+    List<String> paths = new ArrayList<>();
+    for (File file : files) {
+      if (StegImage.isImageFile(file)) {
+        paths.add(file.getPath());
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * What probing an image found.
+   */
+  static class Result {
+
+    private final String path;
+    private final PayloadHeader header;
+    private final String error;
+    private final long nanos;
+
+    Result(String path, PayloadHeader header, String error, long nanos) {
+      this.path = path;
+      this.header = header;
+      this.error = error;
+      this.nanos = nanos;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * This method returns the header of the payload.
+     *
+     * @return the header, or null if the image has no payload or could not be
+     * probed
+     */
+    public PayloadHeader getHeader() {
+      return header;
+    }
+
+    public boolean hasPayload() {
+      return header != null;
+    }
+
+    /**
+     * This method returns why the image could not be probed.
+     *
+     * @return the error, or null if it was probed
+     */
+    public String getError() {
+      return error;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * This method returns the result as one line: the path, and the length,
+     * flags and codec of the payload, that there is none, or the error.
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+      String time = String.format(Locale.ROOT, " (%.1f ms)", nanos / 1e6);
+      if (error != null) {
+        return path + ": Error: " + error + time;
+      } else if (header == null) {
+        return path + ": no payload" + time;
+      }
+      StringBuilder line = new StringBuilder(path).append(": payload of ")
+        .append(header.getLength()).append(" bytes, ").append(flags(header));
+      try {
+        line.append(", ").append(PayloadCodec.forId(header.getCodec()).name()
+          .toLowerCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        line.append(", codec ").append(header.getCodec());
+      }
+      if (header.hasChecksum()) {
+        line.append(", checksum");
+      }
+      if (header.isKeyed()) {
+        line.append(", keyed");
+      }
+      return line.append(time).toString();
+    }
+
+    /**
+     * This method returns the flags the payload was concealed with, like
+     * '-rgb2'.
+     */
+    private static String flags(PayloadHeader header) {
+      int mask = header.getChannelMask();
+      StringBuilder flags = new StringBuilder("-");
+      flags.append((mask & PayloadHeader.MASK_RED) != 0 ? "r" : "")
+        .append((mask & PayloadHeader.MASK_GREEN) != 0 ? "g" : "")
+        .append((mask & PayloadHeader.MASK_BLUE) != 0 ? "b" : "")
+        .append((mask & PayloadHeader.MASK_ALPHA) != 0 ? "a" : "");
+      if (header.getBitsPerChannel() > 1) {
+        flags.append(header.getBitsPerChannel());
+      }
+      return flags.toString();
+    }
+  }
+
+}
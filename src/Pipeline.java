@@ -0,0 +1,227 @@
+/**
+ * This class runs items through a chain of stages, each on threads of its own
+ * with a bounded queue in front of it, so the stages of different items
+ * overlap: while one image is being embedded the next one is being decoded
+ * and the one before it encoded, and the disk and the cores are busy at the
+ * same time instead of taking turns.
+ * <p>
+ * A stage that falls behind fills the queue in front of it, and the stage
+ * before it then waits to hand on its items instead of running ahead, down to
+ * put() itself. So at most the capacity of the queues plus one item per
+ * thread are in flight at once, however many items there are.
+ * <p>
+ * Each stage counts the items it handled, the time its threads were busy, how
+ * deep its queue was each time an item was added and how long the stage
+ * before it waited on the queue being full. report() prints them, to tell
+ * which stage to give more threads: the one that is busy nearly all the time
+ * with a full queue in front of it holds up the others.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+class Pipeline<T> {
+
+  // Put on a queue after the last item
+  private static final Object END = new Object();
+
+  /**
+   * The work of a stage on one item.
+   */
+  interface Step<T> {
+    /**
+     * This method runs the stage on one item.
+     *
+     * @param item
+     *
+     * @return whether the item goes on to the next stage; an item that does
+     * not is done with
+     */
+    boolean run(T item);
+  }
+
+  private final List<Stage> stages = new ArrayList<>();
+  private long started;
+  private long finished;
+
+  /**
+   * This method adds a stage after the ones added before it.
+   *
+   * @param name     - the name of the stage in report()
+   * @param threads  - number of threads running the stage
+   * @param capacity - number of items the queue in front of the stage holds
+   * @param step
+   *
+   * @return this pipeline
+   */
+  public Pipeline<T> stage(String name, int threads, int capacity, Step<T> step) {
+    if (started != 0) {
+      throw new IllegalStateException("The pipeline has already started");
+    }
+    if (threads < 1 || capacity < 1) {
+      throw new IllegalArgumentException("A stage needs at least 1 thread and room for 1 item - "
+        + name);
+    }
+    Stage stage = new Stage(name, threads, capacity, step);
+    if (!stages.isEmpty()) {
+      stages.get(stages.size() - 1).next = stage;
+    }
+    stages.add(stage);
+    return this;
+  }
+
+  /**
+   * This method starts the threads of every stage.
+   */
+  public void start() {
+    if (stages.isEmpty()) {
+      throw new IllegalStateException("The pipeline has no stages");
+    }
+    started = System.nanoTime();
+    for (Stage stage : stages) {
+      stage.start();
+    }
+  }
+
+  /**
+   * This method hands an item to the first stage, waiting while its queue is
+   * full.
+   *
+   * @param item
+   *
+   * @throws InterruptedException
+   */
+  public void put(T item) throws InterruptedException {
+    stages.get(0).put(item);
+  }
+
+  /**
+   * This method waits for every item put so far to go through all the
+   * stages, and stops the threads. No items can be put afterwards.
+   *
+   * @throws InterruptedException
+   */
+  public void finish() throws InterruptedException {
+    stages.get(0).end();
+    for (Stage stage : stages) {
+      for (Thread thread : stage.workers) {
+        thread.join();
+      }
+    }
+    finished = System.nanoTime();
+  }
+
+  /**
+   * This method returns the counters of every stage, one line each.
+   *
+   * @return
+   */
+  public String report() {
+    long elapsed = Math.max((finished != 0 ? finished : System.nanoTime()) - started, 1);
+    StringBuilder report = new StringBuilder();
+    for (Stage stage : stages) {
+      long puts = stage.puts.sum();
+      report.append(String.format(Locale.ROOT,
+        "%s: %d threads, %d items, %.0f%% busy; queue %.1f deep on average, at most %d of %d,"
+          + " %.2f s spent waiting for room in it%n", stage.name, stage.threads, stage.items.sum(),
+        100.0 * stage.busyNanos.sum() / ((double) elapsed * stage.threads),
+        puts == 0 ? 0.0 : (double) stage.depths.sum() / puts, stage.maxDepth.get(),
+        stage.capacity, stage.fullNanos.sum() / 1e9));
+    }
+    return report.toString().trim();
+  }
+
+  private class Stage {
+
+    private final String name;
+    private final int threads;
+    private final int capacity;
+    private final Step<T> step;
+    // Bounded by places rather than by its own capacity, so END always fits
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Semaphore places;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private Stage next;
+
+    private final LongAdder items = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder fullNanos = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder depths = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    Stage(String name, int threads, int capacity, Step<T> step) {
+      this.name = name;
+      this.threads = threads;
+      this.capacity = capacity;
+      this.step = step;
+      this.places = new Semaphore(capacity);
+    }
+
+    void start() {
+      running.set(threads);
+      for (int i = 0; i < threads; i++) {
+        Thread thread = new Thread(this::work, "steg-" + name + "-" + (i + 1));
+        workers.add(thread);
+        thread.start();
+      }
+    }
+
+    void put(Object item) throws InterruptedException {
+      if (!places.tryAcquire()) {
+        long start = System.nanoTime();
+        places.acquire();
+        fullNanos.add(System.nanoTime() - start);
+      }
+      queue.add(item);
+      int depth = capacity - places.availablePermits();
+      puts.increment();
+      depths.add(depth);
+      maxDepth.accumulate(depth);
+    }
+
+    void end() {
+      queue.add(END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+      try {
+        while (true) {
+          Object item = queue.take();
+          if (item == END) {
+            queue.add(END); // for the other threads of the stage
+            return;
+          }
+          places.release();
+          long start = System.nanoTime();
+          boolean handOn;
+          try {
+            handOn = step.run((T) item);
+          } catch (RuntimeException e) {
+            handOn = false; // the step reports its own errors, this only keeps the thread going
+          }
+          busyNanos.add(System.nanoTime() - start);
+          items.increment();
+          if (handOn && next != null) {
+            next.put(item);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (running.decrementAndGet() == 0 && next != null) {
+          next.end();
+        }
+      }
+    }
+  }
+
+}
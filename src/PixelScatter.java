@@ -0,0 +1,227 @@
+/**
+ * This class scatters a payload over the pixels of an image in an order that
+ * only the holder of a key can follow, instead of filling consecutive pixels
+ * from the top of the image.
+ * <p>
+ * The order is a keyed permutation of the pixel indexes: a 4 round Feistel
+ * network over the smallest even number of bits that covers them, with
+ * indexes that land past the end walked round the cycle again until they
+ * fall inside. The round keys are taken from the SHA-256 of the key. Where
+ * any pixel of the payload goes is worked out on its own in a few
+ * multiplications, without generating the order from the start, so a payload
+ * can still be split into runs handled on different threads that share
+ * nothing but the (immutable) permutation.
+ * <p>
+ * The LsbEngine still packs the payload densely into "slots": pixel number i
+ * of the payload is the pixel at pixelAt(i). A run of the payload is embedded
+ * by gathering its pixels into a scratch array, having the engine embed into
+ * that, and writing the pixels back to where they came from. The scratch
+ * arrays are taken from a BufferPool and given back after each run, so a
+ * payload that fills the image does not allocate arrays of its size.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class PixelScatter {
+
+  private static final int ROUNDS = 4;
+
+  // Runs shorter than this many bytes are not split across threads
+  private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  private final long[] roundKeys = new long[ROUNDS];
+  private final int firstPixel;
+  private final int pixelCount;
+  private final int halfBits;
+  private final long halfMask;
+  private final BufferPool buffers;
+
+  /**
+   * Creates the permutation of pixelCount pixels starting at firstPixel.
+   *
+   * @param key
+   * @param firstPixel - the first pixel the payload may go into
+   * @param pixelCount - the number of pixels from firstPixel on
+   * @param buffers    - where the scratch arrays of the runs come from
+   */
+  public PixelScatter(String key, int firstPixel, int pixelCount, BufferPool buffers) {
+    if (key.isEmpty()) {
+      throw new IllegalArgumentException("The key must not be empty");
+    }
+    ByteBuffer digest = ByteBuffer.wrap(sha256(key.getBytes(StandardCharsets.UTF_8)));
+    for (int r = 0; r < ROUNDS; r++) {
+      roundKeys[r] = digest.getLong();
+    }
+    this.firstPixel = firstPixel;
+    this.pixelCount = Math.max(0, pixelCount);
+    int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, this.pixelCount - 1));
+    this.halfBits = (bits + 1) / 2;
+    this.halfMask = (1L << halfBits) - 1;
+    this.buffers = buffers;
+  }
+
+  /**
+   * This method returns the pixel that holds pixel number slot of the
+   * payload.
+   *
+   * @param slot - from 0 to pixelCount - 1
+   *
+   * @return
+   */
+  public int pixelAt(long slot) {
+    long index = slot;
+    do {
+      index = permute(index);
+    } while (index >= pixelCount);
+    return firstPixel + (int) index;
+  }
+
+  /**
+   * This method embeds length bytes of message with engine, into the pixels
+   * from number firstSlot of the payload on, like LsbEngine.embed(). Long
+   * runs are split across the threads of pool; if pool is null the bytes are
+   * written on this thread.
+   *
+   * @param pool
+   * @param engine
+   * @param pixels
+   * @param firstSlot - a whole number of the engine's groups of pixels
+   * @param message
+   * @param offset
+   * @param length
+   *
+   * @return the number of pixels written to
+   */
+  public int embed(ForkJoinPool pool, LsbEngine engine, int[] pixels, int firstSlot,
+                   byte[] message, int offset, int length) {
+    RunTask task = new RunTask(this, engine, true, pixels, firstSlot, message, offset, length);
+    if (pool == null) {
+      task.compute();
+    } else {
+      pool.invoke(task);
+    }
+    return (int) engine.pixelsFor(length);
+  }
+
+  /**
+   * This method reads length bytes with engine out of the pixels from number
+   * firstSlot of the payload on, like LsbEngine.extract().
+   *
+   * @return the number of pixels read from
+   *
+   * @see #embed
+   */
+  public int extract(ForkJoinPool pool, LsbEngine engine, int[] pixels, int firstSlot,
+                     byte[] out, int offset, int length) {
+    RunTask task = new RunTask(this, engine, false, pixels, firstSlot, out, offset, length);
+    if (pool == null) {
+      task.compute();
+    } else {
+      pool.invoke(task);
+    }
+    return (int) engine.pixelsFor(length);
+  }
+
+  /**
+   * This method is the Feistel network: a permutation of the numbers below
+   * 2^(2 * halfBits).
+   */
+  private long permute(long index) {
+    long left = index >>> halfBits;
+    long right = index & halfMask;
+    for (int r = 0; r < ROUNDS; r++) {
+      long next = left ^ (mix(right ^ roundKeys[r]) & halfMask);
+      left = right;
+      right = next;
+    }
+    return left << halfBits | right;
+  }
+
+  /**
+   * This method is the finalizer of SplitMix64, which spreads every bit of x
+   * over all the bits of the result.
+   */
+  private static long mix(long x) {
+    x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+    x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+    return x ^ (x >>> 31);
+  }
+
+  private static byte[] sha256(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every JVM has SHA-256
+    }
+  }
+
+  /**
+   * This task embeds or extracts a run of bytes through a scratch array of
+   * the run's pixels. Like LsbEngine's own task, runs longer than
+   * PARALLEL_THRESHOLD are cut in two at a group boundary.
+   */
+  private static class RunTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PixelScatter scatter;
+    private final LsbEngine engine;
+    private final boolean embed;
+    private final int[] pixels;
+    private final int firstSlot;
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    RunTask(PixelScatter scatter, LsbEngine engine, boolean embed, int[] pixels, int firstSlot,
+            byte[] bytes, int offset, int length) {
+      this.scatter = scatter;
+      this.engine = engine;
+      this.embed = embed;
+      this.pixels = pixels;
+      this.firstSlot = firstSlot;
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    protected void compute() {
+      int groupBytes = engine.bytesPerGroup();
+      int half = length / groupBytes / 2 * groupBytes;
+      // run straight through when called without a pool
+      if (length > PARALLEL_THRESHOLD && half > 0 && inForkJoinPool()) {
+        int middleSlot = firstSlot + half / groupBytes * engine.pixelsPerGroup();
+        invokeAll(new RunTask(scatter, engine, embed, pixels, firstSlot, bytes, offset, half),
+          new RunTask(scatter, engine, embed, pixels, middleSlot, bytes, offset + half, length - half));
+        return;
+      }
+      int count = (int) engine.pixelsFor(length);
+      int[] where = scatter.buffers.ints(count);
+      int[] scratch = scatter.buffers.ints(count);
+      try {
+        for (int i = 0; i < count; i++) {
+          where[i] = scatter.pixelAt(firstSlot + (long) i);
+          scratch[i] = pixels[where[i]];
+        }
+        if (embed) {
+          engine.embed(scratch, 0, bytes, offset, length);
+          for (int i = 0; i < count; i++) {
+            pixels[where[i]] = scratch[i];
+          }
+        } else {
+          engine.extract(scratch, 0, bytes, offset, length);
+        }
+      } finally {
+        scatter.buffers.release(where);
+        scatter.buffers.release(scratch);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * This class reads the first rows of a PNG. ImageIO's reader inflates every
+ * row of the image even when asked for a source region of a few of them, so
+ * for a large PNG reading its first row takes nearly as long as reading all
+ * of it; this reader stops inflating as soon as it has the rows it was asked
+ * for. StegImage uses it to open an image for its head pixels.
+ * <p>
+ * Only images that are not interlaced and have 8 or 16 bits per sample are
+ * read, into an image of the type ImageIO would have read them as; for any
+ * other image readHead() returns null, and ImageIO reads it instead.
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+import javax.imageio.ImageTypeSpecifier;
+
+class PngReader {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+  // Chunk types, as big endian ints
+  private static final int IHDR = 0x49484452;
+  private static final int IDAT = 0x49444154;
+  private static final int IEND = 0x49454E44;
+
+  // PNG row filters
+  private static final int FILTER_NONE = 0;
+  private static final int FILTER_SUB = 1;
+  private static final int FILTER_UP = 2;
+  private static final int FILTER_AVERAGE = 3;
+  private static final int FILTER_PAETH = 4;
+
+  private PngReader() {
+  }
+
+  /**
+   * This method reads the first rows of a PNG.
+   *
+   * @param file
+   * @param type - the type ImageIO reads the image as, from
+   *             ImageReader.getImageTypes()
+   * @param rows - number of rows to read
+   *
+   * @return an image of the rows that were read, or null if the image is
+   * interlaced, has less than 8 bits per sample or does not have the samples
+   * type asks for
+   *
+   * @throws IOException if the file can't be read or is not a PNG
+   */
+  public static BufferedImage readHead(File file, ImageTypeSpecifier type, int rows)
+    throws IOException {
+    try (DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      byte[] signature = new byte[SIGNATURE.length];
+      in.readFully(signature);
+      if (!Arrays.equals(signature, SIGNATURE) || in.readInt() != 13 || in.readInt() != IHDR) {
+        throw new IOException("Not a PNG image: " + file);
+      }
+      int width = in.readInt();
+      int height = in.readInt();
+      int bitDepth = in.readUnsignedByte();
+      int colorType = in.readUnsignedByte();
+      in.readUnsignedByte(); // compression, always deflate
+      in.readUnsignedByte(); // filter method, always adaptive
+      int interlace = in.readUnsignedByte();
+      in.readInt(); // CRC
+      int samples = colorType == 0 || colorType == 3 ? 1 : colorType == 2 ? 3 : colorType == 4 ? 2 : 4;
+      if (width <= 0 || height <= 0 || interlace != 0 || (bitDepth != 8 && bitDepth != 16)
+        || (colorType == 3 && bitDepth != 8)
+        || type.getSampleModel().getNumBands() != samples) {
+        return null;
+      }
+      rows = Math.min(rows, height);
+      BufferedImage image = type.createBufferedImage(width, rows);
+      WritableRaster raster = image.getRaster();
+      int bytesPerSample = bitDepth / 8;
+      int bytesPerPixel = samples * bytesPerSample;
+      byte[] row = new byte[width * bytesPerPixel];
+      byte[] previous = new byte[row.length];
+      int[] pixels = new int[width * samples];
+      DataInputStream idat = new DataInputStream(new InflaterInputStream(new IdatStream(in, file)));
+      for (int y = 0; y < rows; y++) {
+        int filter = idat.readUnsignedByte();
+        idat.readFully(row);
+        unfilter(filter, row, previous, bytesPerPixel);
+        for (int i = 0; i < pixels.length; i++) {
+          pixels[i] = bytesPerSample == 1 ? row[i] & 0xFF
+            : (row[2 * i] & 0xFF) << 8 | (row[2 * i + 1] & 0xFF);
+        }
+        raster.setPixels(0, y, width, 1, pixels);
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+      }
+      return image;
+    } catch (EOFException e) {
+      throw new IOException("Truncated PNG image: " + file);
+    }
+  }
+
+  /**
+   * This method undoes the filter of a row in place, using the row above it.
+   */
+  private static void unfilter(int filter, byte[] row, byte[] previous, int bytesPerPixel)
+    throws IOException {
+    if (filter == FILTER_NONE) {
+      return;
+    }
+    for (int i = 0; i < row.length; i++) {
+      int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+      int b = previous[i] & 0xFF;
+      int predictor;
+      if (filter == FILTER_SUB) {
+        predictor = a;
+      } else if (filter == FILTER_UP) {
+        predictor = b;
+      } else if (filter == FILTER_AVERAGE) {
+        predictor = (a + b) / 2;
+      } else if (filter == FILTER_PAETH) {
+        int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+      } else {
+        throw new IOException("Invalid PNG row filter: " + filter);
+      }
+      row[i] = (byte) (row[i] + predictor);
+    }
+  }
+
+  /**
+   * This stream hands out the data of the IDAT chunks one after the other,
+   * skipping the chunks in between, and ends at the IEND chunk.
+   */
+  private static class IdatStream extends InputStream {
+
+    private final DataInputStream in;
+    private final File file;
+    // Bytes left in the current IDAT chunk
+    private int left;
+    private boolean ended;
+
+    IdatStream(DataInputStream in, File file) {
+      this.in = in;
+      this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      while (left == 0) {
+        if (ended || !nextIdat()) {
+          return -1;
+        }
+      }
+      int n = in.read(bytes, offset, Math.min(length, left));
+      if (n < 0) {
+        throw new EOFException();
+      }
+      left -= n;
+      if (left == 0) {
+        in.readInt(); // CRC
+      }
+      return n;
+    }
+
+    /**
+     * This method moves to the data of the next IDAT chunk.
+     *
+     * @return false if the image ended first
+     */
+    private boolean nextIdat() throws IOException {
+      while (true) {
+        int length = in.readInt();
+        int type = in.readInt();
+        if (length < 0) {
+          throw new IOException("Damaged PNG chunk: " + file);
+        } else if (type == IDAT) {
+          left = length;
+          if (length == 0) {
+            in.readInt(); // CRC
+          }
+          return true;
+        } else if (type == IEND) {
+          ended = true;
+          return false;
+        }
+        in.skipNBytes(length + 4L); // and the CRC
+      }
+    }
+  }
+
+}
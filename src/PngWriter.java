@@ -0,0 +1,207 @@
+/**
+ * This class writes a StegImage as a PNG. Unlike ImageIO, it reads the pixels
+ * a band of rows at a time with StegImage.readRows(), straight from the
+ * image's raster, so no second BufferedImage is needed to save the image, and
+ * the deflate level can be picked to trade CPU against file size.
+ * <p>
+ * Every row uses the Paeth filter, which suits photographs, except at level 0
+ * where the rows are stored as they are and only the speed matters. The
+ * compressed data is split into IDAT chunks of at most IDAT_SIZE bytes.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+class PngWriter {
+
+  static final int DEFAULT_LEVEL = 6;
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+  private static final int IDAT_SIZE = 1 << 16;
+
+  // PNG colour types and row filters
+  private static final int COLOR_RGB = 2;
+  private static final int COLOR_RGBA = 6;
+  private static final int FILTER_NONE = 0;
+  private static final int FILTER_PAETH = 4;
+
+  private final int level;
+
+  /**
+   * Creates a writer.
+   *
+   * @param level - deflate level, from 0 (fastest) to 9 (smallest)
+   */
+  public PngWriter(int level) {
+    if (level < 0 || level > 9) {
+      throw new IllegalArgumentException("PNG level must be from 0 to 9 - " + level);
+    }
+    this.level = level;
+  }
+
+  /**
+   * This method writes the image to out as a PNG.
+   *
+   * @param image
+   * @param alpha - true to write the alpha of every pixel as well
+   * @param out
+   *
+   * @throws IOException if out can't be written to
+   */
+  public void write(StegImage image, boolean alpha, OutputStream out) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int bytesPerPixel = alpha ? 4 : 3;
+    DataOutputStream data = new DataOutputStream(out);
+    data.write(SIGNATURE);
+
+    byte[] ihdr = new byte[13];
+    putInt(ihdr, 0, width);
+    putInt(ihdr, 4, height);
+    ihdr[8] = 8; // bits per sample
+    ihdr[9] = (byte) (alpha ? COLOR_RGBA : COLOR_RGB);
+    writeChunk(data, "IHDR", ihdr, ihdr.length);
+
+    int filter = level == 0 ? FILTER_NONE : FILTER_PAETH;
+    int rowBytes = width * bytesPerPixel;
+    byte[] row = new byte[rowBytes];
+    byte[] previous = new byte[rowBytes];
+    byte[] filtered = new byte[rowBytes + 1];
+    filtered[0] = (byte) filter;
+    int[] band = image.getBufferPool().ints(width * Math.min(height, StegImage.BAND_ROWS));
+    Deflater deflater = new Deflater(level);
+    try (DeflaterOutputStream idat = new DeflaterOutputStream(new IdatStream(data), deflater, IDAT_SIZE)) {
+      for (int y = 0; y < height; y += StegImage.BAND_ROWS) {
+        int rows = Math.min(StegImage.BAND_ROWS, height - y);
+        image.readRows(y, rows, band);
+        for (int r = 0; r < rows; r++) {
+          toBytes(band, r * width, width, alpha, row);
+          if (filter == FILTER_NONE) {
+            System.arraycopy(row, 0, filtered, 1, rowBytes);
+          } else {
+            paeth(row, previous, bytesPerPixel, filtered);
+          }
+          idat.write(filtered);
+          byte[] swap = previous;
+          previous = row;
+          row = swap;
+        }
+      }
+    } finally {
+      deflater.end();
+      image.getBufferPool().release(band);
+    }
+    writeChunk(data, "IEND", new byte[0], 0);
+    data.flush();
+  }
+
+  /**
+   * This method turns width packed ARGB pixels starting at offset into the
+   * RGB or RGBA bytes of a PNG row.
+   */
+  private static void toBytes(int[] band, int offset, int width, boolean alpha, byte[] row) {
+    int i = 0;
+    for (int p = offset; p < offset + width; p++) {
+      int argb = band[p];
+      row[i++] = (byte) (argb >>> 16);
+      row[i++] = (byte) (argb >>> 8);
+      row[i++] = (byte) argb;
+      if (alpha) {
+        row[i++] = (byte) (argb >>> 24);
+      }
+    }
+  }
+
+  /**
+   * This method applies the Paeth filter to row, using the row above it, and
+   * writes the result after the filter type byte of filtered.
+   */
+  private static void paeth(byte[] row, byte[] previous, int bytesPerPixel, byte[] filtered) {
+    for (int i = 0; i < row.length; i++) {
+      int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+      int b = previous[i] & 0xFF;
+      int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+      int p = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+      filtered[i + 1] = (byte) (row[i] - predictor);
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, String type, byte[] bytes, int length)
+    throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(bytes, 0, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(bytes, 0, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  /**
+   * This stream collects the compressed data and writes it out as IDAT
+   * chunks. Closing it writes the last chunk but leaves the underlying stream
+   * open for the IEND chunk.
+   */
+  private static class IdatStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final byte[] buffer = new byte[IDAT_SIZE];
+    private int count;
+
+    IdatStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        writeIdat();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) {
+          writeIdat();
+        }
+        int n = Math.min(length, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, n);
+        count += n;
+        offset += n;
+        length -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (count > 0) {
+        writeIdat();
+      }
+    }
+
+    private void writeIdat() throws IOException {
+      writeChunk(out, "IDAT", buffer, count);
+      count = 0;
+    }
+  }
+
+}
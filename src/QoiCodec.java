@@ -0,0 +1,335 @@
+/**
+ * This class reads and writes images in the QOI format ("Quite OK Image",
+ * qoiformat.org). QOI is lossless like PNG but only looks at the previous
+ * pixel and a small table of recently seen pixels, so it encodes and decodes
+ * many times faster than deflate at a file size close to PNG's. ImageIO has
+ * no QOI plugin, so StegImage reads .qoi files through read().
+ * <p>
+ * Like PngWriter, write() reads the pixels a band of rows at a time with
+ * StegImage.readRows(), straight from the image's raster.
+ */
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+class QoiCodec {
+
+  private static final int MAGIC = 0x716F6966; // "qoif"
+  private static final int MAX_PIXELS = 400000000;
+
+  // Opcodes, the 2 bit ones in the top bits of the byte
+  private static final int OP_INDEX = 0x00;
+  private static final int OP_DIFF = 0x40;
+  private static final int OP_LUMA = 0x80;
+  private static final int OP_RUN = 0xC0;
+  private static final int OP_RGB = 0xFE;
+  private static final int OP_RGBA = 0xFF;
+  private static final int MASK_2 = 0xC0;
+
+  private static final int HEADER_SIZE = 14;
+  private static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+
+  private QoiCodec() {
+  }
+
+  /**
+   * This method writes the image to out as a QOI image.
+   *
+   * @param image
+   * @param alpha - true to write the alpha of every pixel as well
+   * @param out
+   *
+   * @throws IOException if out can't be written to
+   */
+  public static void write(StegImage image, boolean alpha, OutputStream out) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int bandPixels = width * Math.min(height, StegImage.BAND_ROWS);
+    BufferPool buffers = image.getBufferPool();
+    int[] band = buffers.ints(bandPixels);
+    // every pixel takes at most 5 bytes, so a band always fits
+    byte[] bytes = buffers.bytes(Math.max(bandPixels * 5, HEADER_SIZE) + END.length);
+    int n = putInt(bytes, 0, MAGIC);
+    n = putInt(bytes, n, width);
+    n = putInt(bytes, n, height);
+    bytes[n++] = (byte) (alpha ? 4 : 3);
+    bytes[n++] = 0; // sRGB with linear alpha
+
+    int[] index = new int[64];
+    int previous = 0xFF000000;
+    int run = 0;
+    for (int y = 0; y < height; y += StegImage.BAND_ROWS) {
+      int count = Math.min(StegImage.BAND_ROWS, height - y) * width;
+      image.readRows(y, count / width, band);
+      for (int p = 0; p < count; p++) {
+        int pixel = alpha ? band[p] : band[p] | 0xFF000000;
+        if (pixel == previous) {
+          run++;
+          if (run == 62) {
+            bytes[n++] = (byte) (OP_RUN | (run - 1));
+            run = 0;
+          }
+          continue;
+        }
+        if (run > 0) {
+          bytes[n++] = (byte) (OP_RUN | (run - 1));
+          run = 0;
+        }
+        int hash = hash(pixel);
+        if (index[hash] == pixel) {
+          bytes[n++] = (byte) (OP_INDEX | hash);
+        } else {
+          index[hash] = pixel;
+          if ((pixel >>> 24) == (previous >>> 24)) {
+            int dr = (byte) ((pixel >> 16) - (previous >> 16));
+            int dg = (byte) ((pixel >> 8) - (previous >> 8));
+            int db = (byte) (pixel - previous);
+            int drdg = dr - dg;
+            int dbdg = db - dg;
+            if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+              bytes[n++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+            } else if (dg >= -32 && dg <= 31 && drdg >= -8 && drdg <= 7 && dbdg >= -8 && dbdg <= 7) {
+              bytes[n++] = (byte) (OP_LUMA | (dg + 32));
+              bytes[n++] = (byte) ((drdg + 8) << 4 | (dbdg + 8));
+            } else {
+              bytes[n++] = (byte) OP_RGB;
+              bytes[n++] = (byte) (pixel >> 16);
+              bytes[n++] = (byte) (pixel >> 8);
+              bytes[n++] = (byte) pixel;
+            }
+          } else {
+            bytes[n++] = (byte) OP_RGBA;
+            bytes[n++] = (byte) (pixel >> 16);
+            bytes[n++] = (byte) (pixel >> 8);
+            bytes[n++] = (byte) pixel;
+            bytes[n++] = (byte) (pixel >>> 24);
+          }
+        }
+        previous = pixel;
+      }
+      out.write(bytes, 0, n);
+      n = 0;
+    }
+    if (run > 0) {
+      bytes[n++] = (byte) (OP_RUN | (run - 1));
+    }
+    System.arraycopy(END, 0, bytes, n, END.length);
+    out.write(bytes, 0, n + END.length);
+    out.flush();
+    buffers.release(band);
+    buffers.release(bytes);
+  }
+
+  /**
+   * This method reads a QOI image into a TYPE_INT_RGB image, or a
+   * TYPE_INT_ARGB image if it has alpha.
+   *
+   * @param file
+   *
+   * @return
+   *
+   * @throws IOException if the file can't be read or is not a QOI image
+   */
+  public static BufferedImage read(File file) throws IOException {
+    return read(file, BufferPool.UNPOOLED);
+  }
+
+  /**
+   * This method reads a QOI image like read(File), into an image taken from
+   * buffers.
+   *
+   * @param file
+   * @param buffers
+   *
+   * @return
+   *
+   * @throws IOException if the file can't be read or is not a QOI image
+   */
+  public static BufferedImage read(File file, BufferPool buffers) throws IOException {
+    return read(file, buffers, Integer.MAX_VALUE);
+  }
+
+  /**
+   * This method reads a QOI image like read(File, BufferPool), but only the
+   * rows holding its first headPixels pixels; the rest of the file is not
+   * looked at.
+   *
+   * @param file
+   * @param buffers
+   * @param headPixels
+   *
+   * @return an image of the rows that were read
+   *
+   * @throws IOException if the file can't be read or is not a QOI image
+   */
+  public static BufferedImage read(File file, BufferPool buffers, int headPixels)
+    throws IOException {
+    try (InputStream stream = new FileInputStream(file)) {
+      Input in = new Input(stream);
+      byte[] header = new byte[HEADER_SIZE];
+      for (int i = 0; i < header.length; i++) {
+        header[i] = (byte) in.next();
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(header);
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a QOI image: " + file);
+      }
+      int width = buffer.getInt();
+      int height = buffer.getInt();
+      int channels = buffer.get();
+      // the colour space that follows does not change the pixels
+      if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS
+        || (channels != 3 && channels != 4)) {
+        throw new IOException("Damaged QOI header: " + file);
+      }
+      // a run may go on past the last row read, which it is cut short at
+      int rows = (int) Math.min(height, ((long) headPixels + width - 1) / width);
+      BufferedImage image = buffers.image(width, rows,
+        channels == 4 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+      int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+      int[] index = new int[64];
+      int pixel = 0xFF000000;
+      int p = 0;
+      try {
+        while (p < pixels.length) {
+          int b = in.next();
+          if (b == OP_RGB) {
+            pixel = (pixel & 0xFF000000) | in.next() << 16 | in.next() << 8 | in.next();
+          } else if (b == OP_RGBA) {
+            int rgb = in.next() << 16 | in.next() << 8 | in.next();
+            pixel = in.next() << 24 | rgb;
+          } else if ((b & MASK_2) == OP_INDEX) {
+            pixel = index[b];
+          } else if ((b & MASK_2) == OP_DIFF) {
+            pixel = add(pixel, ((b >> 4) & 3) - 2, ((b >> 2) & 3) - 2, (b & 3) - 2);
+          } else if ((b & MASK_2) == OP_LUMA) {
+            int dg = (b & 0x3F) - 32;
+            int b2 = in.next();
+            pixel = add(pixel, dg + ((b2 >> 4) & 0x0F) - 8, dg, dg + (b2 & 0x0F) - 8);
+          } else {
+            int run = Math.min((b & 0x3F) + 1, pixels.length - p);
+            for (int i = 0; i < run; i++) {
+              pixels[p++] = pixel;
+            }
+            continue;
+          }
+          index[hash(pixel)] = pixel;
+          pixels[p++] = pixel;
+        }
+      } catch (EOFException e) {
+        throw new IOException("Truncated QOI image: " + file);
+      }
+      return image;
+    }
+  }
+
+  /**
+   * This method reads the width and height of a QOI image from its header,
+   * without decoding any pixels.
+   *
+   * @param file
+   *
+   * @return
+   *
+   * @throws IOException if the file can't be read or is not a QOI image
+   */
+  public static Dimension size(File file) throws IOException {
+    ByteBuffer header = readHeader(file);
+    return new Dimension(header.getInt(4), header.getInt(8));
+  }
+
+  /**
+   * This method returns true if a QOI image has alpha (4 channels), from its
+   * header.
+   *
+   * @param file
+   *
+   * @return
+   *
+   * @throws IOException if the file can't be read or is not a QOI image
+   */
+  public static boolean hasAlpha(File file) throws IOException {
+    return readHeader(file).get(12) == 4;
+  }
+
+  private static ByteBuffer readHeader(File file) throws IOException {
+    byte[] header;
+    try (InputStream in = new FileInputStream(file)) {
+      header = in.readNBytes(HEADER_SIZE);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    if (header.length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a QOI image: " + file);
+    }
+    int width = buffer.getInt(4);
+    int height = buffer.getInt(8);
+    if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+      throw new IOException("Damaged QOI header: " + file);
+    }
+    return buffer;
+  }
+
+  private static int hash(int argb) {
+    int r = (argb >> 16) & 0xFF;
+    int g = (argb >> 8) & 0xFF;
+    int b = argb & 0xFF;
+    int a = argb >>> 24;
+    return (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+  }
+
+  private static int putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+    return offset + 4;
+  }
+
+  /**
+   * This method adds the differences to the colours of pixel, wrapping
+   * around within each byte.
+   */
+  private static int add(int pixel, int dr, int dg, int db) {
+    return (pixel & 0xFF000000) | ((pixel >> 16) + dr & 0xFF) << 16
+      | ((pixel >> 8) + dg & 0xFF) << 8 | (pixel + db & 0xFF);
+  }
+
+  /**
+   * This class hands out the bytes of a stream one at a time from its own
+   * buffer, which is much faster than a DataInputStream for the one byte
+   * reads the decoder does.
+   */
+  private static class Input {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    Input(InputStream in) {
+      this.in = in;
+    }
+
+    int next() throws IOException {
+      if (position == limit) {
+        limit = in.read(buffer);
+        position = 0;
+        if (limit <= 0) {
+          limit = 0;
+          throw new EOFException();
+        }
+      }
+      return buffer[position++] & 0xFF;
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * This class keeps the payloads revealed from images, so revealing the same
+ * image again costs a map lookup instead of decoding the whole image. It is
+ * meant for long running callers (see the reveal-service operation of
+ * Steganography) that reveal the same set of images over and over.
+ * <p>
+ * An image is known by its canonical path, last modified time and size, plus
+ * the flags it was revealed with, so an image that is written again is
+ * revealed again. The cache holds at most maxBytes bytes of payload; when it
+ * is full the payloads used least recently are evicted first. Payloads larger
+ * than the whole cache are revealed but not kept.
+ * <p>
+ * The cache is safe to use from many threads. The lock is not held while an
+ * image is decoded, so two threads missing on the same image at the same time
+ * may both decode it.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+class RevealCache {
+
+  // Bytes counted for every entry on top of its payload, for the key and map
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxBytes;
+  private final Steganografier.Verify verify;
+  // Images and buffers of the images revealed, for the next misses
+  private final BufferPool buffers = new BufferPool(BufferPool.defaultMaxBytes());
+  // In access order, so the first entry is the one used least recently
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxBytes - the most bytes of payload the cache holds
+   * @param verify   - checking done when an image is revealed (see
+   *                 Steganografier.setVerify())
+   */
+  public RevealCache(long maxBytes, Steganografier.Verify verify) {
+    this.maxBytes = maxBytes;
+    this.verify = verify;
+  }
+
+  /**
+   * This method returns the payload revealed from the image at path, from the
+   * cache if the image has been revealed before and has not changed since.
+   *
+   * @param path
+   * @param flags - see Steganografier.selectableDesteganographi()
+   *
+   * @return the payload, which must not be changed
+   *
+   * @throws IOException              if the image can't be read
+   * @throws IllegalArgumentException if the flags are invalid or the payload
+   *                                  is damaged
+   */
+  public byte[] reveal(String path, String flags) throws IOException {
+    File file = new File(path).getCanonicalFile();
+    if (!file.isFile()) {
+      throw new IOException("The image could not be read: " + path);
+    }
+    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    String key = file.getPath() + '\0' + attributes.lastModifiedTime().toMillis() + '\0'
+      + attributes.size() + '\0' + flags;
+    synchronized (this) {
+      byte[] payload = entries.get(key);
+      if (payload != null) {
+        hits++;
+        return payload;
+      }
+      misses++;
+    }
+
+    StegImage si = new StegImage(file.getPath(), null, buffers);
+    byte[] payload;
+    try {
+      if (!si.isLoaded()) {
+        throw new IOException("The image could not be read: " + path);
+      }
+      Steganografier steganografier = new Steganografier(si);
+      steganografier.setVerify(verify);
+      // every char of the revealed string holds one byte of the payload
+      payload = steganografier.selectableDesteganographi(flags)
+        .getBytes(StandardCharsets.ISO_8859_1);
+    } finally {
+      si.release();
+    }
+    put(key, payload);
+    return payload;
+  }
+
+  /**
+   * This method adds a payload and evicts the payloads used least recently
+   * until the cache fits in maxBytes again.
+   */
+  private synchronized void put(String key, byte[] payload) {
+    long size = payload.length + ENTRY_OVERHEAD;
+    if (size > maxBytes) {
+      return;
+    }
+    byte[] old = entries.put(key, payload);
+    if (old != null) {
+      bytes -= old.length + ENTRY_OVERHEAD;
+    }
+    bytes += size;
+    Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes) {
+      bytes -= eldest.next().getValue().length + ENTRY_OVERHEAD;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * This method returns the counters of the cache as one line of text.
+   *
+   * @return
+   */
+  public synchronized String stats() {
+    long lookups = hits + misses;
+    return String.format(Locale.ROOT,
+      "Cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %d of %d bytes",
+      hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, entries.size(),
+      bytes, maxBytes);
+  }
+
+}
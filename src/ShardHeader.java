@@ -0,0 +1,128 @@
+/**
+ * This class is the sequence header that Sharder writes at the start of the
+ * payload of every image a large payload is split across. It tells reveal
+ * where the shard belongs in the payload and which other shards it has to be
+ * reassembled with. Its 40 bytes are laid out as (all numbers big endian):
+ * <p>
+ * 0-3 : magic, the ASCII letters "SHRD"
+ * <p>
+ * 4 : version of the header layout (VERSION)
+ * <p>
+ * 5-7 : unused, 0
+ * <p>
+ * 8-11 : index of the shard, from 0
+ * <p>
+ * 12-15 : number of shards the payload was split into
+ * <p>
+ * 16-23 : id of the set of shards, the same random number in each of them
+ * <p>
+ * 24-31 : offset in the payload of the first byte of the shard
+ * <p>
+ * 32-39 : length of the whole payload in bytes
+ * <p>
+ * The length of the shard itself is not recorded: it is the length of the
+ * payload in the PayloadHeader, less SIZE.
+ */
+
+import java.nio.ByteBuffer;
+
+class ShardHeader {
+
+  static final int MAGIC = 0x53485244; // "SHRD"
+  static final int VERSION = 1;
+  static final int SIZE = 40;
+
+  private final int index;
+  private final int count;
+  private final long setId;
+  private final long offset;
+  private final long totalLength;
+
+  /**
+   * Creates a header.
+   *
+   * @param index
+   * @param count
+   * @param setId       - the same for every shard of the payload
+   * @param offset
+   * @param totalLength
+   */
+  public ShardHeader(int index, int count, long setId, long offset, long totalLength) {
+    this.index = index;
+    this.count = count;
+    this.setId = setId;
+    this.offset = offset;
+    this.totalLength = totalLength;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getSetId() {
+    return setId;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getTotalLength() {
+    return totalLength;
+  }
+
+  /**
+   * This method returns the 40 bytes of the header.
+   *
+   * @return
+   */
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+    buffer.putInt(MAGIC);
+    buffer.put((byte) VERSION);
+    buffer.put(new byte[3]);
+    buffer.putInt(index);
+    buffer.putInt(count);
+    buffer.putLong(setId);
+    buffer.putLong(offset);
+    buffer.putLong(totalLength);
+    return buffer.array();
+  }
+
+  /**
+   * This method reads a header from the first bytes of a revealed payload.
+   *
+   * @param bytes
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if the bytes are not a shard header, or
+   *                                  the header was written by a newer
+   *                                  version or is damaged
+   */
+  public static ShardHeader parse(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (bytes.length < SIZE || buffer.getInt() != MAGIC) {
+      throw new IllegalArgumentException("The payload is not a shard");
+    }
+    int version = buffer.get() & 0xFF;
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported shard header version: " + version);
+    }
+    buffer.position(buffer.position() + 3);
+    int index = buffer.getInt();
+    int count = buffer.getInt();
+    long setId = buffer.getLong();
+    long offset = buffer.getLong();
+    long totalLength = buffer.getLong();
+    if (count < 1 || index < 0 || index >= count || offset < 0 || totalLength < offset) {
+      throw new IllegalArgumentException("Damaged shard header");
+    }
+    return new ShardHeader(index, count, setId, offset, totalLength);
+  }
+
+}
@@ -0,0 +1,444 @@
+/**
+ * This class splits one payload across many images, so a payload is no
+ * longer limited to what a single image holds, and conceals and reveals the
+ * pieces (shards) on several workers at once, so the work scales with the
+ * number of cores and images.
+ * <p>
+ * The payload is split in the order the images are given, into shards sized
+ * to the capacity of each image as read from its header by CapacityPlanner.
+ * The payload is spread over all the images in proportion to their capacity
+ * rather than filling the first ones up, so every worker gets a share of it;
+ * images that would get nothing are left out. Each shard is concealed as the
+ * payload of its own image, with a ShardHeader in front of it saying where it
+ * goes, and is checked like any other payload (see Steganografier.setVerify()).
+ * <p>
+ * Reveal takes the images in any order, reveals them on the workers, and
+ * writes every shard straight to its place in the output file. It then checks
+ * that the shards all come from the same payload and cover it exactly once.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+class Sharder {
+
+  private final ExecutorService executor;
+  // Shared by the images for their embedding, or null for one thread each
+  private final ForkJoinPool pool;
+  private final Steganografier.Verify verify;
+  // Images and buffers of finished shards, for the next ones
+  private final BufferPool buffers = new BufferPool(BufferPool.defaultMaxBytes());
+  // Format of the output images, or null to go by their extension
+  private String format;
+  private int pngLevel = PngWriter.DEFAULT_LEVEL;
+
+  /**
+   * Creates a sharder. Call shutdown() when done with it.
+   *
+   * @param workers - number of images handled at the same time
+   * @param threads - number of threads shared by the images for embedding
+   *                (see Steganografier.setThreads())
+   * @param verify  - checking done while concealing and revealing each image
+   */
+  public Sharder(int workers, int threads, Steganografier.Verify verify) {
+    this.verify = verify;
+    this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    this.executor = Executors.newFixedThreadPool(workers);
+  }
+
+  /**
+   * This method sets the format the output images are saved in (see
+   * StegImage.setOutputFormat()) and the deflate level of png output.
+   *
+   * @param format   - the format, or null to go by the extension of each
+   *                 output path
+   * @param pngLevel
+   */
+  public void setOutputFormat(String format, int pngLevel) {
+    this.format = format;
+    this.pngLevel = pngLevel;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * This method splits the file at payloadPath across the input images and
+   * saves each image that holds a shard to the output path at the same
+   * index.
+   *
+   * @param payloadPath
+   * @param inputs
+   * @param outputs
+   * @param flags       - see Steganografier.selectableSteganographi()
+   *
+   * @return the number of images the payload was split across
+   *
+   * @throws IOException              if the payload or an image can't be read
+   *                                  or saved
+   * @throws IllegalArgumentException if the payload does not fit in the
+   *                                  images, or the flags are invalid
+   * @throws IllegalStateException    if a shard read back from its image
+   *                                  does not match
+   */
+  public int conceal(String payloadPath, List<String> inputs, List<String> outputs, String flags)
+    throws IOException {
+    if (inputs.size() != outputs.size()) {
+      throw new IllegalArgumentException("Every input image needs an output path");
+    }
+    File payload = new File(payloadPath);
+    if (!payload.isFile()) {
+      throw new IOException("The payload could not be read: " + payloadPath);
+    }
+    long start = System.nanoTime();
+    long totalLength = payload.length();
+    long[] room = new long[inputs.size()];
+    for (int i = 0; i < room.length; i++) {
+      room[i] = Math.max(0, new CapacityPlanner(inputs.get(i)).capacity(flags) - ShardHeader.SIZE);
+    }
+    long[] lengths = plan(totalLength, room);
+
+    // an empty payload still gets one shard, in the first image, to record it
+    boolean[] used = new boolean[lengths.length];
+    int count = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      used[i] = lengths[i] > 0 || (totalLength == 0 && i == 0);
+      count += used[i] ? 1 : 0;
+    }
+    long setId = ThreadLocalRandom.current().nextLong();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    long offset = 0;
+    for (int i = 0, index = 0; i < lengths.length; i++) {
+      if (!used[i]) {
+        continue;
+      }
+      ShardHeader header = new ShardHeader(index++, count, setId, offset, totalLength);
+      String input = inputs.get(i);
+      String output = outputs.get(i);
+      long length = lengths[i];
+      tasks.add(() -> {
+        concealShard(input, output, flags, header, payload.toPath(), length);
+        return null;
+      });
+      offset += length;
+    }
+    runAll(tasks);
+    Log.info(String.format(Locale.ROOT,
+      "Split %d bytes across %d images in %.2f s", totalLength, count,
+      (System.nanoTime() - start) / 1e9));
+    return count;
+  }
+
+  /**
+   * This method reveals the shards in the images and reassembles the payload
+   * in the file at payloadPath.
+   *
+   * @param inputs      - the images holding the shards, in any order
+   * @param payloadPath
+   *
+   * @return the length of the payload
+   *
+   * @throws IOException              if an image or the payload file can't
+   *                                  be read or written
+   * @throws IllegalArgumentException if a shard is damaged or missing, or the
+   *                                  shards are not from the same payload
+   */
+  public long reveal(List<String> inputs, String payloadPath) throws IOException {
+    if (inputs.isEmpty()) {
+      throw new IllegalArgumentException("No images to reveal the shards from");
+    }
+    long start = System.nanoTime();
+    Path path = new File(payloadPath).toPath();
+    boolean done = false;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      List<Callable<ShardOutput>> tasks = new ArrayList<>();
+      for (String input : inputs) {
+        tasks.add(() -> revealShard(input, channel));
+      }
+      long totalLength = reassemble(runAll(tasks));
+      channel.truncate(totalLength);
+      done = true;
+      Log.info(String.format(Locale.ROOT,
+        "Reassembled %d bytes from %d images in %.2f s", totalLength, inputs.size(),
+        (System.nanoTime() - start) / 1e9));
+      return totalLength;
+    } finally {
+      if (!done) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * This method splits totalLength bytes into one length for each image, in
+   * proportion to the room in each.
+   *
+   * @param totalLength
+   * @param room        - the bytes each image has room for
+   *
+   * @return
+   *
+   * @throws IllegalArgumentException if the images don't have room for it
+   */
+  static long[] plan(long totalLength, long[] room) {
+    long totalRoom = 0;
+    for (long r : room) {
+      totalRoom += r;
+    }
+    if (totalLength > totalRoom || room.length == 0) {
+      throw new IllegalArgumentException("The payload of " + totalLength + " bytes does not fit in "
+        + room.length + " images, which hold " + totalRoom + " bytes");
+    }
+    long[] lengths = new long[room.length];
+    long left = totalLength;
+    for (int i = 0; i < room.length; i++) {
+      lengths[i] = Math.min(room[i], (long) ((double) totalLength * room[i] / totalRoom));
+      left -= lengths[i];
+    }
+    // hand out what rounding left over to the images that still have room
+    for (int i = 0; i < room.length && left > 0; i++) {
+      long more = Math.min(left, room[i] - lengths[i]);
+      lengths[i] += more;
+      left -= more;
+    }
+    return lengths;
+  }
+
+  private void concealShard(String input, String output, String flags, ShardHeader header,
+                            Path payloadPath, long length) throws IOException {
+    StegImage si = new StegImage(input, output, buffers);
+    try {
+      if (!si.isLoaded()) {
+        throw new IOException("The image could not be read: " + input);
+      }
+      if (format != null) {
+        si.setOutputFormat(format);
+      }
+      si.setPngLevel(pngLevel);
+      Steganografier steganografier = new Steganografier(si);
+      steganografier.setPool(pool);
+      steganografier.setVerify(verify);
+      // the shards were sized to fill the images as they are, so a codec that
+      // grows an incompressible shard by a few bytes would overflow one
+      steganografier.setCodec(PayloadCodec.NONE);
+      try (FileChannel channel = FileChannel.open(payloadPath, StandardOpenOption.READ)) {
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(header.toBytes()),
+          new Slice(channel, header.getOffset(), length));
+        steganografier.concealStream(in, flags);
+      }
+      if (!si.saveImage()) {
+        throw new IOException("The image could not be saved to " + output);
+      }
+    } finally {
+      si.release();
+    }
+  }
+
+  private ShardOutput revealShard(String input, FileChannel channel) throws IOException {
+    StegImage si = new StegImage(input, null, buffers);
+    ShardOutput out = new ShardOutput(input, channel);
+    try {
+      if (!si.isLoaded()) {
+        throw new IOException("The image could not be read: " + input);
+      }
+      Steganografier steganografier = new Steganografier(si);
+      steganografier.setPool(pool);
+      steganografier.setVerify(verify);
+      steganografier.revealStream(out);
+    } finally {
+      si.release();
+    }
+    if (out.header == null) {
+      throw new IllegalArgumentException("The payload of " + input + " is not a shard");
+    }
+    return out;
+  }
+
+  /**
+   * This method checks that the revealed shards all belong to one payload
+   * and cover it exactly once.
+   *
+   * @return the length of the payload
+   */
+  private static long reassemble(List<ShardOutput> shards) {
+    ShardHeader first = shards.get(0).header;
+    ShardOutput[] byIndex = new ShardOutput[first.getCount()];
+    for (ShardOutput shard : shards) {
+      ShardHeader header = shard.header;
+      if (header.getSetId() != first.getSetId() || header.getCount() != first.getCount()
+        || header.getTotalLength() != first.getTotalLength()) {
+        throw new IllegalArgumentException(shard.input + " holds a shard of another payload");
+      }
+      if (byIndex[header.getIndex()] != null) {
+        throw new IllegalArgumentException(shard.input + " holds the same shard as "
+          + byIndex[header.getIndex()].input);
+      }
+      byIndex[header.getIndex()] = shard;
+    }
+    long offset = 0;
+    for (int i = 0; i < byIndex.length; i++) {
+      if (byIndex[i] == null) {
+        throw new IllegalArgumentException("Shard " + (i + 1) + " of " + byIndex.length
+          + " is missing");
+      }
+      if (byIndex[i].header.getOffset() != offset) {
+        throw new IllegalArgumentException("Damaged shard header in " + byIndex[i].input);
+      }
+      offset += byIndex[i].written;
+    }
+    if (offset != first.getTotalLength()) {
+      throw new IllegalArgumentException("The shards hold " + offset + " of "
+        + first.getTotalLength() + " bytes");
+    }
+    return offset;
+  }
+
+  /**
+   * This method runs the tasks on the workers and waits for all of them.
+   *
+   * @return the results, in the order of the tasks
+   *
+   * @throws IOException if a task failed; the exceptions of the tasks are
+   *                     rethrown as they are, and the first one wins
+   */
+  private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+    List<Future<T>> futures = new ArrayList<>();
+    for (Callable<T> task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    List<T> results = new ArrayList<>();
+    Throwable failure = null;
+    for (Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new IllegalStateException(failure);
+    }
+    return results;
+  }
+
+  /**
+   * This stream reads length bytes of a file starting at offset, without
+   * moving the position of the channel, so the workers can share the file.
+   */
+  private static class Slice extends InputStream {
+
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    Slice(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)),
+        position);
+      if (read < 0) {
+        throw new IOException("The payload changed while it was being split");
+      }
+      position += read;
+      return read;
+    }
+  }
+
+  /**
+   * This stream takes the revealed payload of one image, reads the
+   * ShardHeader from its start and writes the rest to its place in the
+   * output file.
+   */
+  private static class ShardOutput extends OutputStream {
+
+    private final String input;
+    private final FileChannel channel;
+    private final byte[] headerBytes = new byte[ShardHeader.SIZE];
+    private int headerCount;
+    private ShardHeader header;
+    private long written;
+
+    ShardOutput(String input, FileChannel channel) {
+      this.input = input;
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (header == null) {
+        int n = Math.min(length, headerBytes.length - headerCount);
+        System.arraycopy(bytes, offset, headerBytes, headerCount, n);
+        headerCount += n;
+        offset += n;
+        length -= n;
+        if (headerCount < headerBytes.length) {
+          return;
+        }
+        header = ShardHeader.parse(headerBytes);
+      }
+      long position = header.getOffset() + written;
+      if (position + length > header.getTotalLength()) {
+        throw new IllegalArgumentException("The shard in " + input
+          + " runs past the end of the payload");
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      written += length;
+    }
+  }
+
+}
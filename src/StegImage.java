@@ -6,18 +6,102 @@
  * allow you to retrieve the byte array of the image file. You can then alter
  * the images RGB values from the byte array, and then save the newly altered
  * pixels into a new image.
+ * <p>
+ * Instead of the whole byte array, the pixels can also be read and written a
+ * band of rows at a time with readRows() and writeRows(), which keeps the
+ * memory needed for the pixels bounded no matter how large the image is.
+ * <p>
+ * For the common image types the pixels are read and written straight from
+ * the data buffer of the image's raster, without going through the colour
+ * model: images stored as packed ints (TYPE_INT_RGB, TYPE_INT_ARGB) hand out
+ * their own int[] and are changed in place, and images stored as interleaved
+ * bytes (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR) are converted to and from packed
+ * ints one band at a time. Every other type goes through getRGB() and setRGB()
+ * into a new RGB image (ARGB if the input image has alpha).
+ * <p>
+ * Images of 16 bits per sample and grayscale images are not converted at all,
+ * since getRGB() would cut their samples down to 8 bits or change their
+ * colours: their samples are read and written through the raster (see
+ * LAYOUT_SAMPLES), and only the low byte of each sample is handed out in the
+ * packed ints, which holds every bit the payload can use. Writing a band sets
+ * the low bytes and keeps the rest of every sample. A grayscale image has one
+ * sample per pixel, so every three rows of it are handed out as one row of
+ * pixels whose red, green and blue bytes are three samples next to each
+ * other; getHeight() is a third of the rows of the image. This is done when
+ * they are saved as a png, in the same layout as they were read, or only
+ * revealed; to be saved in any other format they are converted through
+ * getRGB() like every other type, as they were before.
+ * <p>
+ * The output image is saved as a bmp, png, qoi, ppm or pam, picked by the
+ * extension of the output path or by setOutputFormat(). All but bmp and ppm
+ * keep the alpha of the input image, and all but bmp are written a band of
+ * rows at a time (by PngWriter, QoiCodec and MappedCarrier), straight from
+ * the raster; qoi images can be read back as input.
+ * <p>
+ * Uncompressed images (ppm, pam and plain 24 or 32 bit bmp) are not decoded
+ * at all but memory mapped by MappedCarrier, so images larger than the heap
+ * can be used. Their rows are read and written through the mapping, and
+ * saving them in their own format only writes the rows that changed.
+ * <p>
+ * Opened with a number of head pixels, only the rows of the image holding
+ * them are decoded (by PngReader for a png, by stopping a qoi early, or
+ * through the source region of the ImageReader), so the start of an image of any size can be looked
+ * at in about the same time; PayloadProbe uses this to find the
+ * PayloadHeader. Such an image is only the rows that were read, and can't be
+ * saved.
+ * <p>
+ * Given a BufferPool, the image is decoded into a BufferedImage of an earlier
+ * job where one of the same size and type was given back, and the other big
+ * arrays and images come from the pool as well. release() gives them all back
+ * once the image is done with.
  */
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.Locale;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 
 class StegImage {
 
+  // Number of rows copied at a time when the image is handled in bands
+  static final int BAND_ROWS = 64;
+
+  // How the pixels of the input image are reached (see initRaster)
+  private static final int LAYOUT_RGB = 0;
+  private static final int LAYOUT_INT = 1;
+  private static final int LAYOUT_BYTE = 2;
+  private static final int LAYOUT_MAPPED = 3;
+  private static final int LAYOUT_SAMPLES = 4;
+
+  // Output formats (see setOutputFormat)
+  static final String FORMAT_BMP = "bmp";
+  static final String FORMAT_PNG = "png";
+  static final String FORMAT_QOI = "qoi";
+  static final String FORMAT_PPM = "ppm";
+  static final String FORMAT_PAM = "pam";
+
   private BufferedImage inputImage;
+  // The mapped input image for LAYOUT_MAPPED, instead of inputImage
+  private MappedCarrier mapped;
   private BufferedImage outputImage;
   private File inputFile;
   private File outputFile;
@@ -27,6 +111,31 @@ class StegImage {
   private int height;
   private int width;
   private int[] pixels;
+  // Number of pixels, from the start of the image, that were changed
+  private int changedPixels;
+  private int layout;
+  // The data buffer of the input image for LAYOUT_INT and LAYOUT_BYTE
+  private int[] intBank;
+  private byte[] byteBank;
+  private int bytesPerPixel;
+  // For LAYOUT_SAMPLES, the raster of the input image, its number of samples
+  // per pixel and whether it is grayscale (three rows to a row of pixels)
+  private WritableRaster sampleRaster;
+  private int samplesPerPixel;
+  private boolean gray;
+  // For LAYOUT_RGB, the RGB image that writeRows() writes to and the number of
+  // rows of it that have been filled in
+  private BufferedImage bandImage;
+  private int bandRows;
+  // Format of the output image, or null to go by the extension of its path
+  private String outputFormat;
+  private int pngLevel = PngWriter.DEFAULT_LEVEL;
+  // Where the big arrays and images come from and go back to
+  private BufferPool buffers = BufferPool.UNPOOLED;
+  // The copy of every pixel made by getByteArray(), to give back on release()
+  private int[] copy;
+  // Number of pixels from the start that were decoded, or 0 for all of them
+  private int headPixels;
 
   /**
    * Constructor that takes a path to an input image, and a path to an output
@@ -38,20 +147,51 @@ class StegImage {
    * @param outputFileName
    */
   public StegImage(String inputFilePath, String outputFilePath) {
+    this(inputFilePath, outputFilePath, BufferPool.UNPOOLED);
+  }
+
+  /**
+   * Constructor that takes the paths of the input and output images and the
+   * pool the buffers for the image are taken from. Call release() once the
+   * image has been saved.
+   *
+   * @param inputFilePath
+   * @param outputFilePath - or null if the image is only revealed
+   * @param buffers
+   */
+  public StegImage(String inputFilePath, String outputFilePath, BufferPool buffers) {
+    this(inputFilePath, outputFilePath, buffers, 0);
+  }
+
+  /**
+   * Constructor that decodes only the rows of the input image holding its
+   * first headPixels pixels. getHeight() is the number of rows of pixels
+   * that were read, and the image can't be saved.
+   *
+   * @param inputFilePath
+   * @param headPixels    - number of pixels from the start of the image that
+   *                      are read
+   */
+  public StegImage(String inputFilePath, int headPixels) {
+    this(inputFilePath, null, BufferPool.UNPOOLED, headPixels);
+  }
+
+  private StegImage(String inputFilePath, String outputFilePath, BufferPool buffers,
+                    int headPixels) {
+    this.buffers = buffers;
+    this.headPixels = headPixels;
     try {
       this.inputFilePath = extractFileName(inputFilePath);
-      this.outputFilePath = extractFileName(outputFilePath);
       this.fileType = inputFilePath.substring(inputFilePath.length() - 4, inputFilePath.length());
       this.inputFile = new File(inputFilePath);
-      this.outputFile = new File(outputFilePath);
-      this.inputImage = ImageIO.read(inputFile);
-      this.height = inputImage.getHeight();
-      this.width = inputImage.getWidth();
-      this.outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); // FOR BMP FILES
-      this.pixels = getByteArray();
+      if (outputFilePath != null) {
+        this.outputFilePath = extractFileName(outputFilePath);
+        this.outputFile = new File(outputFilePath);
+      }
+      open();
 
     } catch (IOException e) {
-      System.out.println("Error: " + e);
+      Log.error(String.valueOf(e));
     }
   }
 
@@ -62,57 +202,636 @@ class StegImage {
    * @param inputFileName
    */
   public StegImage(String inputFilePath) {
-    try {
-      this.inputFilePath = extractFileName(inputFilePath);
-      this.fileType = inputFilePath.substring(inputFilePath.length() - 4, inputFilePath.length());
-      this.inputFile = new File(inputFilePath);
-      this.inputImage = ImageIO.read(inputFile);
+    this(inputFilePath, null, BufferPool.UNPOOLED);
+  }
+
+  /**
+   * This method maps the input image if it is uncompressed, or else reads it,
+   * and picks the layout used to reach its pixels.
+   *
+   * @throws IOException if the image can't be read
+   */
+  private void open() throws IOException {
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.DECODE);
+    this.mapped = MappedCarrier.open(inputFile);
+    if (mapped != null) {
+      this.height = mapped.getHeight();
+      this.width = mapped.getWidth();
+      this.layout = LAYOUT_MAPPED;
+    } else {
+      this.inputImage = readImage(inputFile);
       this.height = inputImage.getHeight();
       this.width = inputImage.getWidth();
-      //this.outputImage = new BufferedImage(width, height, BufferedImage
-      // .TYPE_INT_RGB); // FOR BMP FILES
-    } catch (IOException e) {
-      System.out.println("Error: " + e);
+      initRaster();
+    }
+    timer.stop(inputFile.length(), (long) width * height);
+  }
+
+  /**
+   * This method reads an image with ImageIO, or with QoiCodec for a qoi. With
+   * a pool, the image is decoded into a kept image of the type ImageIO would
+   * have picked, if there is one.
+   *
+   * @param file
+   *
+   * @return
+   *
+   * @throws IOException if the file can't be read or its format is not
+   *                     supported
+   */
+  private BufferedImage readImage(File file) throws IOException {
+    if (file.getName().toLowerCase(Locale.ROOT).endsWith("." + FORMAT_QOI)) {
+      return QoiCodec.read(file, buffers, headPixels > 0 ? headPixels : Integer.MAX_VALUE);
+    }
+    if (buffers == BufferPool.UNPOOLED && headPixels == 0) {
+      BufferedImage image = ImageIO.read(file);
+      if (image == null) {
+        throw new IOException("Unsupported image format: " + file.getPath());
+      }
+      return image;
+    }
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+      if (readers == null || !readers.hasNext()) {
+        throw new IOException("Unsupported image format: " + file.getPath());
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        // the first type is the one ImageIO.read() creates
+        ImageTypeSpecifier first = types.hasNext() ? types.next() : null;
+        int type = first != null ? first.getBufferedImageType() : BufferedImage.TYPE_CUSTOM;
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if (headPixels > 0) {
+          // a row of pixels of a gray image is three of its rows
+          int rows = (headPixels + width - 1) / width;
+          if (first != null && isGray(first.getColorModel())) {
+            rows *= 3;
+          }
+          rows = Math.min(rows, height);
+          if (first != null && reader.getFormatName().equalsIgnoreCase(FORMAT_PNG)) {
+            BufferedImage head = PngReader.readHead(file, first, rows);
+            if (head != null) {
+              return head;
+            }
+          }
+          param.setSourceRegion(new Rectangle(0, 0, width, rows));
+        } else if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+          || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+          param.setDestination(buffers.reusedImage(width, height, type));
+        }
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * This method looks at how the raster of the input image stores its pixels
+   * and picks the layout used to read and write them. Packed int and
+   * interleaved byte rasters without any padding between rows are used
+   * directly, and rasters of RGB or gray samples (see usesSamples()) through
+   * their samples; everything else goes through getRGB() and setRGB().
+   */
+  private void initRaster() {
+    WritableRaster raster = inputImage.getRaster();
+    int type = inputImage.getType();
+    if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+      && raster.getDataBuffer() instanceof DataBufferInt
+      && raster.getDataBuffer().getOffset() == 0
+      && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+      layout = LAYOUT_INT;
+      intBank = ((DataBufferInt) raster.getDataBuffer()).getData();
+    } else if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+      && raster.getDataBuffer() instanceof DataBufferByte
+      && raster.getDataBuffer().getOffset() == 0
+      && ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride()
+      == width * raster.getNumBands()) {
+      layout = LAYOUT_BYTE;
+      byteBank = ((DataBufferByte) raster.getDataBuffer()).getData();
+      bytesPerPixel = raster.getNumBands();
+    } else if (usesSamples(inputImage.getColorModel())) {
+      sampleRaster = raster;
+      samplesPerPixel = raster.getNumBands();
+      pickSampleLayout();
+    } else {
+      layout = LAYOUT_RGB;
+    }
+  }
+
+  /**
+   * This method picks the layout of an image of samples (see usesSamples()):
+   * LAYOUT_SAMPLES if it is only revealed or saved as a png, the one format
+   * that keeps its samples, or else LAYOUT_RGB, converting it to RGB like any
+   * other image so it can be saved in every format.
+   */
+  private void pickSampleLayout() {
+    boolean samples = outputFile == null || getOutputFormat().equals(FORMAT_PNG);
+    layout = samples ? LAYOUT_SAMPLES : LAYOUT_RGB;
+    gray = samples && isGray(inputImage.getColorModel());
+    height = gray ? inputImage.getHeight() / 3 : inputImage.getHeight();
+  }
+
+  /**
+   * This method returns true if images with this colour model (other than
+   * the packed int and interleaved byte types) are read and written through
+   * their samples: RGB or gray samples of 8 to 16 bits, with or without
+   * alpha, that is not premultiplied.
+   *
+   * @param colorModel
+   *
+   * @return
+   */
+  static boolean usesSamples(ColorModel colorModel) {
+    if (!(colorModel instanceof ComponentColorModel) || colorModel.isAlphaPremultiplied()
+      || (colorModel.getTransferType() != DataBuffer.TYPE_BYTE
+      && colorModel.getTransferType() != DataBuffer.TYPE_USHORT)) {
+      return false;
+    }
+    int colorSpace = colorModel.getColorSpace().getType();
+    int components = colorModel.getNumColorComponents();
+    for (int size : colorModel.getComponentSize()) {
+      if (size < 8) {
+        return false;
+      }
+    }
+    return colorSpace == ColorSpace.TYPE_RGB && components == 3
+      || colorSpace == ColorSpace.TYPE_GRAY && components == 1;
+  }
+
+  /**
+   * This method returns true if images with this colour model are grayscale
+   * images read through their samples, so three of their rows make a row of
+   * pixels.
+   *
+   * @param colorModel
+   *
+   * @return
+   */
+  static boolean isGray(ColorModel colorModel) {
+    return usesSamples(colorModel) && colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+  }
+
+  /**
+   * This method returns true if file is a file with the extension of an image
+   * that can be read: a qoi, ppm or pam, or a format ImageIO has a reader for.
+   *
+   * @param file
+   *
+   * @return
+   */
+  static boolean isImageFile(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    if (!file.isFile() || dot < 0) {
+      return false;
     }
+    String suffix = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    if (suffix.equals(FORMAT_QOI) || suffix.equals(FORMAT_PPM) || suffix.equals(FORMAT_PAM)) {
+      return true; // read by StegImage itself rather than ImageIO
+    }
+    for (String readable : ImageIO.getReaderFileSuffixes()) {
+      if (suffix.equals(readable.toLowerCase(Locale.ROOT))) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
    * This method returns the byte array in an int[] of the image. From this
-   * data, you can retrieve the RGB values of each pixel.
+   * data, you can retrieve the RGB values of each pixel. For images stored as
+   * packed ints this is the image's own array, so changes to it change the
+   * image directly; for every other image it is a copy.
    *
    * @return
    */
   public int[] getByteArray() {
-    return inputImage.getRGB(0, 0, width, height, null, 0, width);
+    if (layout == LAYOUT_INT) {
+      return intBank;
+    }
+    int[] all = buffers.exactInts(width * height);
+    readRows(0, height, all);
+    if (copy == null) {
+      copy = all;
+    }
+    return all;
+  }
+
+  /**
+   * This method returns the pool the buffers of this image come from, for
+   * the classes that write it out.
+   *
+   * @return
+   */
+  BufferPool getBufferPool() {
+    return buffers;
+  }
+
+  /**
+   * This method gives the decoded image and every buffer taken for it back to
+   * its BufferPool. Nothing of the image, including arrays returned by
+   * getByteArray(), may be used afterwards.
+   */
+  public void release() {
+    if (buffers != BufferPool.UNPOOLED) {
+      buffers.release(inputImage);
+      buffers.release(bandImage);
+      buffers.release(outputImage);
+      buffers.release(copy);
+    }
+    inputImage = null;
+    sampleRaster = null;
+    bandImage = null;
+    outputImage = null;
+    copy = null;
+    pixels = null;
+    intBank = null;
+    byteBank = null;
   }
 
   /**
    * This method saves a byte array (newPixels) to the image container specified
    * as outputFileName. The image will be saved to the same dir as the input
-   * image.
+   * image. Only the rows holding changed pixels are copied back into the
+   * image, and none at all when the pixels are the image's own array. A
+   * mapped image saved in its own format is copied with only its changed rows
+   * written. Other formats are written straight from the rows; since a bmp
+   * can't hold alpha, images with alpha (and mapped images) are copied into
+   * an RGB image first.
    *
    * @param newPixels
    *
    * @return
    */
   public boolean saveImage() {
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.ENCODE);
     try {
-      outputImage.setRGB(0, 0, width, height, this.pixels, 0, width);
-      if (ImageIO.write(outputImage, "bmp", outputFile) == true) {
-        System.out.println("The Steganografied image has been saved successfully to: " + this.outputFile.getAbsolutePath());//outputFilePath);
+      if (headPixels > 0) {
+        Log.error("The file was not saved: only the first rows of the image were read");
+        return false;
+      }
+      if (pixels != null && pixels != intBank) {
+        writeRows(0, (changedPixels + width - 1) / width, pixels);
+      }
+      String format = getOutputFormat();
+      if (layout == LAYOUT_SAMPLES) {
+        // the samples were changed in place, and only a png holds them all
+        if (!format.equals(FORMAT_PNG)) {
+          Log.error("The file was not saved: an image of " + (gray ? "gray" : "16 bit")
+            + " samples can only be saved as a png");
+          return false;
+        }
+        if (!ImageIO.write(inputImage, FORMAT_PNG, outputFile)) {
+          Log.error("The file was not saved successfully");
+          return false;
+        }
+        saved(timer);
+        return true;
+      }
+      if (mapped != null && format.equals(mapped.getFormat())) {
+        mapped.save(outputFile);
+        saved(timer);
+        return true;
+      }
+      if (!format.equals(FORMAT_BMP)) {
+        boolean alpha = hasAlpha();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+          if (format.equals(FORMAT_PNG)) {
+            new PngWriter(pngLevel).write(this, alpha, out);
+          } else if (format.equals(FORMAT_QOI)) {
+            QoiCodec.write(this, alpha, out);
+          } else {
+            MappedCarrier.writePnm(this, alpha && format.equals(FORMAT_PAM), out);
+          }
+        }
+        saved(timer);
+        return true;
+      }
+      BufferedImage image = inputImage;
+      if (layout == LAYOUT_RGB) {
+        copyRows(height); // the rows that were never written
+        image = bandImage;
+      }
+      if (image == null || image.getColorModel().hasAlpha()) {
+        if (outputImage == null) {
+          outputImage = buffers.image(width, height, BufferedImage.TYPE_INT_RGB); // FOR BMP FILES
+        }
+        int[] band = buffers.ints(width * Math.min(height, BAND_ROWS));
+        for (int y = 0; y < height; y += BAND_ROWS) {
+          int rows = Math.min(BAND_ROWS, height - y);
+          readRows(y, rows, band);
+          outputImage.setRGB(0, y, width, rows, band, 0, width);
+        }
+        buffers.release(band);
+        image = outputImage;
+      }
+      if (ImageIO.write(image, "bmp", outputFile) == true) {
+        saved(timer);
         return true;
       } else {
-        System.out.println("Error: The file was not saved successfully");
+        Log.error("The file was not saved successfully");
         return false;
       }
     } catch (IOException ex) {
-      Logger.getLogger(StegImage.class.getName()).log(Level.SEVERE, null, ex);
+      Log.error("The file was not saved successfully: " + ex);
       return false;
     }
   }
 
+  private void saved(StegMetrics.Timer timer) {
+    timer.stop(outputFile.length(), (long) width * height);
+    Log.info("The Steganografied image has been saved successfully to: " + this.outputFile.getAbsolutePath());
+  }
+
+  /**
+   * This method picks the format the output image is saved in, instead of
+   * going by the extension of the output path. Call it before any pixels are
+   * read, since the format decides how an image of samples is read.
+   *
+   * @param format - FORMAT_BMP, FORMAT_PNG, FORMAT_QOI, FORMAT_PPM or
+   *               FORMAT_PAM
+   *
+   * @throws IllegalArgumentException if the format is not one of them
+   */
+  public void setOutputFormat(String format) {
+    String f = format.toLowerCase(Locale.ROOT);
+    if (!f.equals(FORMAT_BMP) && !f.equals(FORMAT_PNG) && !f.equals(FORMAT_QOI)
+      && !f.equals(FORMAT_PPM) && !f.equals(FORMAT_PAM)) {
+      throw new IllegalArgumentException("Unsupported output format: " + format);
+    }
+    this.outputFormat = f;
+    if (sampleRaster != null && pixels == null && bandImage == null) {
+      pickSampleLayout(); // nothing has been read or written through the old one yet
+    }
+  }
+
+  /**
+   * This method returns the format the output image is saved in: the one set
+   * with setOutputFormat(), or else the one matching the extension of the
+   * output path, or else FORMAT_BMP.
+   *
+   * @return
+   */
+  public String getOutputFormat() {
+    if (outputFormat != null) {
+      return outputFormat;
+    }
+    String name = outputFile == null ? "" : outputFile.getName().toLowerCase(Locale.ROOT);
+    if (name.endsWith("." + FORMAT_PNG)) {
+      return FORMAT_PNG;
+    } else if (name.endsWith("." + FORMAT_QOI)) {
+      return FORMAT_QOI;
+    } else if (name.endsWith("." + FORMAT_PPM)) {
+      return FORMAT_PPM;
+    } else if (name.endsWith("." + FORMAT_PAM)) {
+      return FORMAT_PAM;
+    }
+    return FORMAT_BMP;
+  }
+
+  /**
+   * This method sets the deflate level png images are saved with, from 0
+   * (fastest) to 9 (smallest).
+   *
+   * @param level
+   *
+   * @throws IllegalArgumentException if the level is not from 0 to 9
+   */
+  public void setPngLevel(int level) {
+    if (level < 0 || level > 9) {
+      throw new IllegalArgumentException("PNG level must be from 0 to 9 - " + level);
+    }
+    this.pngLevel = level;
+  }
+
+  /**
+   * This method returns true if the input image was read successfully.
+   *
+   * @return
+   */
+  public boolean isLoaded() {
+    return inputImage != null || mapped != null;
+  }
+
+  /**
+   * This method returns true if the input image is memory mapped instead of
+   * read onto the heap. getByteArray() should be avoided for those, since
+   * it copies every pixel; use readRows() and writeRows() instead.
+   *
+   * @return
+   */
+  public boolean isMapped() {
+    return mapped != null;
+  }
+
+  private boolean hasAlpha() {
+    if (mapped != null) {
+      return mapped.hasAlpha();
+    }
+    return inputImage != null && inputImage.getColorModel().hasAlpha();
+  }
+
+  /**
+   * This method returns the colour bytes of the pixels that can hold a
+   * payload, as a PayloadHeader channel mask: red, green and blue, and alpha
+   * if the image has alpha that is kept when it is saved (as a png, qoi or
+   * pam). The alpha of a grayscale image is not handed out.
+   *
+   * @return
+   */
+  public int getChannelMask() {
+    if (!hasAlpha() || gray) {
+      return PayloadHeader.MASK_RGB;
+    }
+    String format = getOutputFormat();
+    boolean keepsAlpha = format.equals(FORMAT_PNG)
+      || layout != LAYOUT_SAMPLES && (format.equals(FORMAT_QOI) || format.equals(FORMAT_PAM));
+    return PayloadHeader.MASK_RGB | (keepsAlpha ? PayloadHeader.MASK_ALPHA : 0);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * This method reads the RGB values of a band of rows into band, which must
+   * hold at least rows * getWidth() ints. Rows that were already written with
+   * writeRows() are read back as they were written.
+   *
+   * @param firstRow
+   * @param rows
+   * @param band
+   */
+  public void readRows(int firstRow, int rows, int[] band) {
+    if (layout == LAYOUT_MAPPED) {
+      mapped.readRows(firstRow, rows, band);
+    } else if (layout == LAYOUT_SAMPLES) {
+      int[] samples = readSamples(firstRow, rows);
+      int n = samplesPerPixel;
+      if (gray) {
+        for (int p = 0, i = 0; p < rows * width; p++, i += 3 * n) {
+          band[p] = 0xFF000000 | (samples[i] & 0xFF) << 16 | (samples[i + n] & 0xFF) << 8
+            | (samples[i + 2 * n] & 0xFF);
+        }
+      } else {
+        for (int p = 0, i = 0; p < rows * width; p++, i += n) {
+          int alpha = n == 4 ? samples[i + 3] & 0xFF : 0xFF;
+          band[p] = alpha << 24 | (samples[i] & 0xFF) << 16 | (samples[i + 1] & 0xFF) << 8
+            | (samples[i + 2] & 0xFF);
+        }
+      }
+      buffers.release(samples);
+    } else if (layout == LAYOUT_INT) {
+      System.arraycopy(intBank, firstRow * width, band, 0, rows * width);
+    } else if (layout == LAYOUT_BYTE) {
+      int n = bytesPerPixel;
+      int i = firstRow * width * n;
+      for (int p = 0; p < rows * width; p++, i += n) {
+        // TYPE_4BYTE_ABGR stores a, b, g, r and TYPE_3BYTE_BGR stores b, g, r
+        int alpha = n == 4 ? (byteBank[i] & 0xFF) << 24 : 0;
+        int k = i + n - 3;
+        band[p] = alpha | (byteBank[k + 2] & 0xFF) << 16 | (byteBank[k + 1] & 0xFF) << 8
+          | (byteBank[k] & 0xFF);
+      }
+    } else {
+      int split = bandImage == null ? firstRow : Math.max(firstRow, Math.min(bandRows, firstRow + rows));
+      if (split > firstRow) {
+        bandImage.getRGB(0, firstRow, width, split - firstRow, band, 0, width);
+      }
+      if (split < firstRow + rows) {
+        inputImage.getRGB(0, split, width, firstRow + rows - split, band, (split - firstRow) * width, width);
+      }
+    }
+  }
+
+  /**
+   * This method writes the RGB values in band back to a band of rows. For
+   * packed int and interleaved byte images the rows go straight into the
+   * image's data buffer, otherwise into a new RGB image. saveImage() then
+   * saves that image.
+   *
+   * @param firstRow
+   * @param rows
+   * @param band
+   */
+  public void writeRows(int firstRow, int rows, int[] band) {
+    if (layout == LAYOUT_MAPPED) {
+      mapped.writeRows(firstRow, rows, band);
+    } else if (layout == LAYOUT_SAMPLES) {
+      // read the samples first, to keep all but their low bytes
+      int[] samples = readSamples(firstRow, rows);
+      int n = samplesPerPixel;
+      if (gray) {
+        for (int p = 0, i = 0; p < rows * width; p++, i += 3 * n) {
+          int rgb = band[p];
+          samples[i] = samples[i] & ~0xFF | (rgb >>> 16) & 0xFF;
+          samples[i + n] = samples[i + n] & ~0xFF | (rgb >>> 8) & 0xFF;
+          samples[i + 2 * n] = samples[i + 2 * n] & ~0xFF | rgb & 0xFF;
+        }
+      } else {
+        for (int p = 0, i = 0; p < rows * width; p++, i += n) {
+          int argb = band[p];
+          samples[i] = samples[i] & ~0xFF | (argb >>> 16) & 0xFF;
+          samples[i + 1] = samples[i + 1] & ~0xFF | (argb >>> 8) & 0xFF;
+          samples[i + 2] = samples[i + 2] & ~0xFF | argb & 0xFF;
+          if (n == 4) {
+            samples[i + 3] = samples[i + 3] & ~0xFF | argb >>> 24;
+          }
+        }
+      }
+      int scale = gray ? 3 : 1;
+      sampleRaster.setPixels(0, firstRow * scale, width, rows * scale, samples);
+      buffers.release(samples);
+    } else if (layout == LAYOUT_INT) {
+      if (band != intBank) {
+        System.arraycopy(band, 0, intBank, firstRow * width, rows * width);
+      }
+    } else if (layout == LAYOUT_BYTE) {
+      int n = bytesPerPixel;
+      int i = firstRow * width * n;
+      for (int p = 0; p < rows * width; p++, i += n) {
+        int argb = band[p];
+        if (n == 4) {
+          byteBank[i] = (byte) (argb >>> 24);
+        }
+        int k = i + n - 3;
+        byteBank[k] = (byte) argb;
+        byteBank[k + 1] = (byte) (argb >>> 8);
+        byteBank[k + 2] = (byte) (argb >>> 16);
+      }
+    } else {
+      copyRows(firstRow); // so every row below bandRows has been written
+      bandImage.setRGB(0, firstRow, width, rows, band, 0, width);
+      bandRows = Math.max(bandRows, firstRow + rows);
+    }
+  }
+
+  /**
+   * This method reads the samples of a band of rows of a LAYOUT_SAMPLES
+   * image, three rows of the image to every row for a grayscale one, into an
+   * array from the pool.
+   *
+   * @param firstRow
+   * @param rows
+   *
+   * @return
+   */
+  private int[] readSamples(int firstRow, int rows) {
+    int scale = gray ? 3 : 1;
+    int[] samples = buffers.ints(rows * scale * width * samplesPerPixel);
+    return sampleRaster.getPixels(0, firstRow * scale, width, rows * scale, samples);
+  }
+
+  /**
+   * This method copies the rows from bandRows up to endRow from the input
+   * image to the band image, BAND_ROWS rows at a time. The band image is
+   * created the first time this is called.
+   *
+   * @param endRow
+   */
+  private void copyRows(int endRow) {
+    if (bandImage == null) {
+      bandImage = buffers.image(width, height, hasAlpha()
+        ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+      bandRows = 0;
+    }
+    if (bandRows >= endRow) {
+      return;
+    }
+    int[] band = buffers.ints(width * Math.min(endRow - bandRows, BAND_ROWS));
+    for (int y = bandRows; y < endRow; y += BAND_ROWS) {
+      int rows = Math.min(BAND_ROWS, endRow - y);
+      inputImage.getRGB(0, y, width, rows, band, 0, width);
+      bandImage.setRGB(0, y, width, rows, band, 0, width);
+    }
+    buffers.release(band);
+    bandRows = endRow;
+  }
+
   public void setPixels(int[] pixels) {
+    setPixels(pixels, pixels.length);
+  }
+
+  /**
+   * This method hands back the altered pixels, along with how many pixels from
+   * the start of the image were changed, so saveImage() only has to copy
+   * those.
+   *
+   * @param pixels
+   * @param changedPixels
+   */
+  public void setPixels(int[] pixels, int changedPixels) {
     this.pixels = pixels;
+    this.changedPixels = changedPixels;
   }
 
   /**
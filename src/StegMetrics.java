@@ -0,0 +1,248 @@
+/**
+ * This class counts where the time of conceal and reveal goes. Each stage of
+ * the pipeline (see Stage) is timed with start() and Timer.stop(), which adds
+ * to the totals of the stage: the number of calls, the time taken (total and
+ * longest), the bytes and pixels handled, and the bytes allocated on the
+ * calling thread. Work handed to the threads of a pool counts towards the
+ * time of the stage but not its allocations.
+ * <p>
+ * Every timed stage is also a JFR event (StageEvent, "steg.Stage"), so a
+ * recording shows the stages next to the GC and I/O of the same moment. The
+ * event costs next to nothing unless a recording with it enabled is running.
+ * <p>
+ * The totals are kept for the whole JVM, and can be exported with toJson() or
+ * toPrometheus().
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+class StegMetrics {
+
+  /**
+   * The stages of the pipeline:
+   * <p>
+   * DECODE : reading the input image (or mapping it)
+   * <p>
+   * CLEAR : clearLowestBit()
+   * <p>
+   * EMBED : writing the header and payload into the pixels
+   * <p>
+   * VERIFY : reading back what was embedded, and the full reveal of
+   * Verify.FULL (whose reading counts as EXTRACT as well)
+   * <p>
+   * EXTRACT : reading a payload out of the pixels
+   * <p>
+   * ENCODE : writing the output image
+   */
+  enum Stage {
+    DECODE, CLEAR, EMBED, VERIFY, EXTRACT, ENCODE;
+
+    String label() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private static final Totals[] TOTALS = new Totals[Stage.values().length];
+  private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationBean();
+
+  static {
+    for (int i = 0; i < TOTALS.length; i++) {
+      TOTALS[i] = new Totals();
+    }
+  }
+
+  private StegMetrics() {
+  }
+
+  /**
+   * This method starts timing a stage on this thread.
+   *
+   * @param stage
+   *
+   * @return the timer to stop when the stage is done
+   */
+  public static Timer start(Stage stage) {
+    return new Timer(stage);
+  }
+
+  /**
+   * This method sets every total back to 0.
+   */
+  public static void reset() {
+    for (Totals t : TOTALS) {
+      t.calls.reset();
+      t.nanos.reset();
+      t.maxNanos.reset();
+      t.bytes.reset();
+      t.pixels.reset();
+      t.allocated.reset();
+    }
+  }
+
+  /**
+   * This method returns the totals as a JSON object with one member for
+   * each stage.
+   *
+   * @return
+   */
+  public static String toJson() {
+    StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+    Stage[] stages = Stage.values();
+    for (int i = 0; i < stages.length; i++) {
+      Totals s = TOTALS[i];
+      json.append(String.format(Locale.ROOT,
+        "%n    \"%s\": {\"calls\": %d, \"seconds\": %.6f, \"maxSeconds\": %.6f, \"bytes\": %d,"
+          + " \"pixels\": %d, \"allocatedBytes\": %d}%s",
+        stages[i].label(), s.calls.sum(), s.nanos.sum() / 1e9, s.maxNanos.get() / 1e9, s.bytes.sum(),
+        s.pixels.sum(), s.allocated.sum(), i + 1 < stages.length ? "," : ""));
+    }
+    return json.append("\n  }\n}").toString();
+  }
+
+  /**
+   * This method returns the totals in the Prometheus text format, one metric
+   * family per total with the stage as a label.
+   *
+   * @return
+   */
+  public static String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    family(text, "steg_stage_calls_total", "counter", "Number of times each stage ran",
+      t -> Long.toString(t.calls.sum()));
+    family(text, "steg_stage_seconds_total", "counter", "Time spent in each stage",
+      t -> seconds(t.nanos.sum()));
+    family(text, "steg_stage_max_seconds", "gauge", "Longest single run of each stage",
+      t -> seconds(t.maxNanos.get()));
+    family(text, "steg_stage_bytes_total", "counter",
+      "Bytes of payload or image handled by each stage", t -> Long.toString(t.bytes.sum()));
+    family(text, "steg_stage_pixels_total", "counter", "Pixels handled by each stage",
+      t -> Long.toString(t.pixels.sum()));
+    family(text, "steg_stage_allocated_bytes_total", "counter",
+      "Bytes allocated on the calling thread by each stage", t -> Long.toString(t.allocated.sum()));
+    return text.toString();
+  }
+
+  private static Totals totals(Stage stage) {
+    return TOTALS[stage.ordinal()];
+  }
+
+  /**
+   * This method writes one metric family, with a sample for every stage.
+   */
+  private static void family(StringBuilder text, String name, String type, String help,
+                             Function<Totals, String> value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    for (Stage stage : Stage.values()) {
+      text.append(name).append("{stage=\"").append(stage.label()).append("\"} ")
+        .append(value.apply(totals(stage))).append('\n');
+    }
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+  }
+
+  /**
+   * This method returns the bean that counts the bytes allocated by a thread,
+   * or null if this JVM does not count them.
+   */
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+      if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+        return threads;
+      }
+    }
+    return null;
+  }
+
+  private static long allocatedBytes() {
+    return ALLOCATIONS == null ? 0 : ALLOCATIONS.getCurrentThreadAllocatedBytes();
+  }
+
+  /**
+   * This class times one run of a stage. It must be stopped on the thread
+   * that started it.
+   */
+  static final class Timer {
+
+    private final Stage stage;
+    private final StageEvent event = new StageEvent();
+    private final long start;
+    private final long allocatedAtStart;
+
+    private Timer(Stage stage) {
+      this.stage = stage;
+      this.allocatedAtStart = allocatedBytes();
+      event.begin();
+      this.start = System.nanoTime();
+    }
+
+    /**
+     * This method adds the run to the totals of the stage.
+     *
+     * @param bytes  - bytes of payload (or of the image file) handled
+     * @param pixels - pixels handled
+     */
+    public void stop(long bytes, long pixels) {
+      long nanos = System.nanoTime() - start;
+      Totals totals = totals(stage);
+      totals.calls.increment();
+      totals.nanos.add(nanos);
+      totals.maxNanos.accumulate(nanos);
+      totals.bytes.add(bytes);
+      totals.pixels.add(pixels);
+      totals.allocated.add(allocatedBytes() - allocatedAtStart);
+      event.end();
+      if (event.shouldCommit()) {
+        event.stage = stage.label();
+        event.bytes = bytes;
+        event.pixels = pixels;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * The totals of one stage, added to from many threads at once.
+   */
+  private static class Totals {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder pixels = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+  }
+
+  @Name("steg.Stage")
+  @Label("Steganography Stage")
+  @Category("Steganography")
+  @Description("One run of a stage of conceal or reveal")
+  static class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Pixels")
+    long pixels;
+  }
+
+}
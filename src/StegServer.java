@@ -0,0 +1,322 @@
+/**
+ * This class is a small HTTP server around StegImage and Steganografier, so
+ * other services can conceal and reveal without starting a JVM for every
+ * image. It listens on the loopback address only and has two endpoints, both
+ * POST, and a third for watching it:
+ * <p>
+ * /conceal?flags=-rgb&imageLength=n[&format=png][&inputFormat=qoi] : the body
+ * is the image (its first imageLength bytes) followed by the payload. The
+ * payload is streamed straight into the image, and the image that comes out
+ * is sent back in format (png unless given). The header X-Payload-Length
+ * holds the number of bytes concealed.
+ * <p>
+ * /reveal?flags=-rgb[&inputFormat=qoi] : the body is the image, and the
+ * payload is sent back.
+ * <p>
+ * GET /metrics[?format=json] : the totals of StegMetrics, in the Prometheus
+ * text format (followed by those of the BufferPool) unless json is asked for.
+ * <p>
+ * inputFormat is only needed for the formats ImageIO can't tell from the
+ * bytes (qoi, ppm, pam); verify=none|checksum|full picks the checking (see
+ * Steganografier.Verify), and codec=none|deflate|lz forces the codec of a
+ * concealed payload (see PayloadCodec) instead of choosing one. Bad requests, such as invalid flags or a payload
+ * that does not fit, get a 400 with the error as text.
+ * <p>
+ * Each request is handled on a virtual thread when the JVM has them (Java 21
+ * and later) and on a cached pool of threads otherwise. Neither queues
+ * requests, so the permits alone limit them: at most maxRequests requests
+ * are handled at a time, and the rest get a 503 straight away instead of
+ * waiting behind them. The decoded images and big buffers of
+ * a request are given back to a BufferPool shared by all of them when it is
+ * done, for the next requests of the same size.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+class StegServer {
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final BufferPool buffers = new BufferPool(BufferPool.defaultMaxBytes());
+
+  /**
+   * Creates a server. It does not accept requests until start() is called.
+   *
+   * @param port        - the port to listen on, or 0 for any free port
+   * @param maxRequests - the most requests handled at the same time
+   *
+   * @throws IOException if the port can't be bound
+   */
+  public StegServer(int port, int maxRequests) throws IOException {
+    if (maxRequests < 1) {
+      throw new IllegalArgumentException("maxRequests must be at least 1 - " + maxRequests);
+    }
+    this.permits = new Semaphore(maxRequests);
+    this.executor = newExecutor();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.setExecutor(executor);
+    server.createContext("/conceal", exchange -> handle(exchange, this::conceal));
+    server.createContext("/reveal", exchange -> handle(exchange, this::reveal));
+    server.createContext("/metrics", this::metrics);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * This method stops the server, giving the requests being handled up to
+   * delaySeconds to finish.
+   *
+   * @param delaySeconds
+   */
+  public void stop(int delaySeconds) {
+    server.stop(delaySeconds);
+    executor.shutdown();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * This method returns an executor that starts a virtual thread per task if
+   * the JVM has them, or else a cached pool of threads. Virtual threads are
+   * looked up by reflection so the server still builds and runs on Java 17.
+   * The pool must not queue tasks, or requests over maxRequests would wait
+   * in its queue for a thread instead of reaching handle() and its 503; the
+   * threads over maxRequests only send the 503, and go away when idle.
+   */
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  private interface Handler {
+    void handle(HttpExchange exchange, Map<String, String> query) throws IOException;
+  }
+
+  /**
+   * This method runs a handler for a request if there is a free permit, and
+   * turns its exceptions into error responses.
+   */
+  private void handle(HttpExchange exchange, Handler handler) {
+    if (!permits.tryAcquire()) {
+      sendError(exchange, 503, "too many requests");
+      exchange.close();
+      return;
+    }
+    try {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        sendError(exchange, 405, "use POST");
+      } else {
+        handler.handle(exchange, query(exchange.getRequestURI()));
+      }
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, 400, e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      sendError(exchange, 500, String.valueOf(e.getMessage()));
+    } finally {
+      permits.release();
+      exchange.close();
+    }
+  }
+
+  /**
+   * This method handles /conceal. The image is written to a temporary file
+   * for StegImage, and the payload is streamed into it from the rest of the
+   * body.
+   */
+  private void conceal(HttpExchange exchange, Map<String, String> query) throws IOException {
+    String flags = query.getOrDefault("flags", "-rgb");
+    String format = query.getOrDefault("format", StegImage.FORMAT_PNG).toLowerCase(Locale.ROOT);
+    long imageLength;
+    try {
+      imageLength = Long.parseLong(query.getOrDefault("imageLength", ""));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("imageLength must be the number of bytes of the image");
+    }
+    Path input = Files.createTempFile("steg-in", "." + inputFormat(query));
+    Path output = Files.createTempFile("steg-out", "." + format);
+    try {
+      InputStream body = exchange.getRequestBody();
+      try (OutputStream out = Files.newOutputStream(input)) {
+        copy(body, out, imageLength); // the rest of the body is the payload
+      }
+      StegImage si = new StegImage(input.toString(), output.toString(), buffers);
+      long length;
+      try {
+        if (!si.isLoaded()) {
+          throw new IllegalArgumentException("The image could not be read");
+        }
+        si.setOutputFormat(format);
+        Steganografier steganografier = new Steganografier(si);
+        steganografier.setVerify(verifyOption(query));
+        if (query.containsKey("codec")) {
+          steganografier.setCodec(PayloadCodec.forName(query.get("codec")));
+        }
+        length = steganografier.concealStream(body, flags);
+        if (!si.saveImage()) {
+          throw new IOException("The image could not be saved");
+        }
+      } finally {
+        si.release();
+      }
+      exchange.getResponseHeaders().set("Content-Type", "image/" + format);
+      exchange.getResponseHeaders().set("X-Payload-Length", String.valueOf(length));
+      exchange.sendResponseHeaders(200, Files.size(output));
+      try (OutputStream out = exchange.getResponseBody()) {
+        Files.copy(output, out);
+      }
+    } finally {
+      Files.deleteIfExists(input);
+      Files.deleteIfExists(output);
+    }
+  }
+
+  /**
+   * This method handles /reveal. The payload is revealed into a temporary
+   * file first, so a damaged payload is answered with an error instead of
+   * half a payload.
+   */
+  private void reveal(HttpExchange exchange, Map<String, String> query) throws IOException {
+    String flags = query.getOrDefault("flags", "-rgb");
+    Path input = Files.createTempFile("steg-in", "." + inputFormat(query));
+    Path payload = Files.createTempFile("steg-payload", ".bin");
+    try {
+      try (InputStream body = exchange.getRequestBody()) {
+        Files.copy(body, input, StandardCopyOption.REPLACE_EXISTING);
+      }
+      StegImage si = new StegImage(input.toString(), null, buffers);
+      try (OutputStream out = Files.newOutputStream(payload)) {
+        if (!si.isLoaded()) {
+          throw new IllegalArgumentException("The image could not be read");
+        }
+        Steganografier steganografier = new Steganografier(si);
+        steganografier.setVerify(verifyOption(query));
+        if (steganografier.hasPayloadHeader()) {
+          steganografier.revealStream(out);
+        } else {
+          // images concealed before the header existed
+          out.write(steganografier.selectableDesteganographi(flags).getBytes(StandardCharsets.ISO_8859_1));
+        }
+      } finally {
+        si.release();
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+      exchange.sendResponseHeaders(200, Files.size(payload));
+      try (OutputStream out = exchange.getResponseBody()) {
+        Files.copy(payload, out);
+      }
+    } finally {
+      Files.deleteIfExists(input);
+      Files.deleteIfExists(payload);
+    }
+  }
+
+  /**
+   * This method handles /metrics. It is not counted against maxRequests, so
+   * the server can still be watched when it is busy.
+   */
+  private void metrics(HttpExchange exchange) {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        sendError(exchange, 405, "use GET");
+        return;
+      }
+      boolean json = "json".equals(query(exchange.getRequestURI()).get("format"));
+      byte[] body = (json ? StegMetrics.toJson() + "\n" : StegMetrics.toPrometheus() + buffers.toPrometheus())
+        .getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type",
+        json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (IOException e) {
+      // the client has gone away
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static String inputFormat(Map<String, String> query) {
+    String format = query.getOrDefault("inputFormat", "img").toLowerCase(Locale.ROOT);
+    if (!format.matches("[a-z0-9]{1,8}")) {
+      throw new IllegalArgumentException("Invalid inputFormat: " + format);
+    }
+    return format;
+  }
+
+  private static Steganografier.Verify verifyOption(Map<String, String> query) {
+    try {
+      return Steganografier.Verify.valueOf(
+        query.getOrDefault("verify", "checksum").toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("verify must be none, checksum or full");
+    }
+  }
+
+  private static Map<String, String> query(URI uri) {
+    Map<String, String> query = new HashMap<>();
+    if (uri.getRawQuery() != null) {
+      for (String pair : uri.getRawQuery().split("&")) {
+        int equals = pair.indexOf('=');
+        if (equals > 0) {
+          query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return query;
+  }
+
+  /**
+   * This method copies exactly length bytes from in to out.
+   *
+   * @throws IllegalArgumentException if in ends first
+   */
+  private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(1 << 16, Math.max(length, 1))];
+    while (length > 0) {
+      int read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, length));
+      if (read == 0) {
+        throw new IllegalArgumentException("The body is shorter than imageLength");
+      }
+      out.write(buffer, 0, read);
+      length -= read;
+    }
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message) {
+    byte[] body = ("Error: " + message + "\n").getBytes(StandardCharsets.UTF_8);
+    try {
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (IOException e) {
+      // the response was already started, or the client has gone away
+    }
+  }
+
+}
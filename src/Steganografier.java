@@ -5,89 +5,211 @@
  * messages into the lowest order bit of the red, green, and/or blue bytes from
  * the pixel byte array. This class can also decode the message, and clear the
  * message from the image.
+ * <p>
+ * Every concealed message is preceded by a PayloadHeader which records the
+ * colour bytes and length of the message. Images without a header (concealed
+ * before the header existed) are still decoded by reading up to the first 0
+ * byte.
+ * <p>
+ * The header also records the CRC32C of the payload. How much checking is
+ * done around it is set with setVerify().
+ * <p>
+ * With a key (see setKey()) the payload is scattered over the image by a
+ * PixelScatter instead of filling the pixels after the header in order. The
+ * header records that a key was used, so reveal asks for it.
+ * <p>
+ * The payload goes through a PayloadCodec before it is embedded (see
+ * setCodec()), and the header records which one, so reveal decodes it again.
  */
 
-import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
 
 class Steganografier {
 
+  /**
+   * How much checking conceal and reveal do:
+   * <p>
+   * NONE : the checksum is still written, but nothing is read back and reveal
+   * does not check it
+   * <p>
+   * CHECKSUM : every chunk is read back as soon as it is embedded and the
+   * checksum of what was read back is compared with the checksum of the
+   * payload; reveal checks the payload against the checksum in the header
+   * <p>
+   * FULL : CHECKSUM, and once conceal is done the whole payload is revealed
+   * again the way reveal would and compared with what was concealed
+   */
+  enum Verify {
+    NONE, CHECKSUM, FULL
+  }
+
+  // Number of pixels the streaming methods work on at a time
+  private static final int STREAM_CHUNK_PIXELS = 1 << 16;
+
   // This int/byte array stores the pixel data we need to conceal a message into
   private int[] inputImageByteArray;
   private StegImage stegImage;
+  // Pool the pixel work is split across, or null to do it on this thread
+  private ForkJoinPool pool;
+  private Verify verify = Verify.CHECKSUM;
+  // Key the payload pixels are scattered with, or null to fill them in order
+  private String key;
+  // Codec the payload is encoded with, or null to choose one for each payload
+  private PayloadCodec codec;
+  // Most bytes a revealed payload may decode to
+  private long maxPayloadLength = PayloadCodec.defaultMaxLength();
 
   public Steganografier(StegImage stegImage) {
     this.stegImage = stegImage;
-    this.inputImageByteArray = stegImage.getByteArray();
+  }
+
+  /**
+   * Creates a Steganografier without an image, for reset() to give it one.
+   */
+  public Steganografier() {
+  }
+
+  /**
+   * This method points this Steganografier at another image, keeping its
+   * threads and settings, so a long running worker can use one
+   * Steganografier for every image it handles instead of a new one each
+   * time.
+   *
+   * @param stegImage
+   */
+  public void reset(StegImage stegImage) {
+    this.stegImage = stegImage;
+    this.inputImageByteArray = null;
+  }
+
+  /**
+   * This method sets the number of threads that embed and extract the
+   * payload. With more than one thread the payload is split into bands of
+   * pixels which are handled on a ForkJoinPool; the image that comes out is
+   * the same as with one thread.
+   *
+   * @param threads
+   */
+  public void setThreads(int threads) {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+  }
+
+  /**
+   * This method shares a pool with other Steganografiers instead of creating
+   * one per image (see setThreads()). The pool is not shut down by this
+   * Steganografier.
+   *
+   * @param pool - the pool, or null to do the work on the calling thread
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * This method sets how much checking conceal and reveal do (see Verify). The
+   * default is Verify.CHECKSUM.
+   *
+   * @param verify
+   */
+  public void setVerify(Verify verify) {
+    this.verify = verify;
+  }
+
+  /**
+   * This method sets the key that the payload is scattered over the image
+   * with (see PixelScatter), or null to write it into the pixels after the
+   * header in order, which is the default. Reveal needs the same key for
+   * payloads concealed with one, and ignores it for payloads without. The
+   * pixels of a scattered payload can be anywhere in the image, so the
+   * whole image is read into memory, even when it is mapped.
+   *
+   * @param key
+   */
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  /**
+   * This method sets the codec the payload is encoded with before it is
+   * embedded, or null to have PayloadCodec.choose() pick one for each
+   * payload, which is the default. Reveal reads the codec from the header.
+   *
+   * @param codec
+   */
+  public void setCodec(PayloadCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * This method sets the most bytes a revealed payload may decode to (see
+   * PayloadCodec), PayloadCodec.defaultMaxLength() by default. Reveal fails
+   * with an IllegalArgumentException on a payload that decodes to more.
+   *
+   * @param maxPayloadLength
+   */
+  public void setMaxPayloadLength(long maxPayloadLength) {
+    this.maxPayloadLength = maxPayloadLength;
+  }
+
+  /**
+   * This method returns the pixel array, reading it from the image the first
+   * time it is needed. The streaming methods never need it, so they never pay
+   * for a copy of every pixel.
+   *
+   * @return
+   */
+  private int[] pixels() {
+    if (inputImageByteArray == null) {
+      inputImageByteArray = stegImage.getByteArray();
+    }
+    return inputImageByteArray;
   }
 
   /**
    * This method is the heart of the application. It takes the message to encode
    * and then converts the message to a byte array of the ASCII values in that
-   * message. It then iterates over every byte (letter) in the array, again
-   * inner-iterating over every bit in those bytes. If the bit is equal to 1, we
-   * increment the red, green, or blue pixel value by 1 to change the lowest
-   * order bit. Else if the bit being read is 0, we don't change any red, green,
-   * or blue bytes because 0 already exists in the lowest bit in those bytes.
-   * Each bit of the message is stored sequentially in the R, G, B values
-   * respectively. Since one letter is one byte (8 bits), one letter will fit in
-   * three pixels (9 bytes -- 1 bit in each red, green, blue byte) and there
-   * will be a leftover bit in the unused blue byte of every third pixel.
+   * message. Every bit of every byte (letter) in the array is then written into
+   * the lowest order bit of the red, green, or blue byte of the pixels by
+   * LsbEngine. Each bit of the message is stored sequentially in the R, G, B
+   * values respectively. Since one letter is one byte (8 bits) and the bits
+   * are packed densely, three letters fit in eight pixels (24 bytes -- 1 bit
+   * in each red, green, blue byte).
    *
    * @param message
    *
    * @return
+   *
+   * @throws IllegalStateException if the message read back from the image
+   *                               does not match (see setVerify())
    */
   public void steganographi(String message) {
-    inputImageByteArray = clearLowestBit();
-    int byteCounter = 0;
-    byte[] asciiArray = message.getBytes(StandardCharsets.US_ASCII);
-    for (int i = 0; i < asciiArray.length; i++) {
-      String letterAsciiBinary = insertPadding(asciiArray[i]);
-      for (int k = 0; k < letterAsciiBinary.length(); k++) {
-        Color c = new Color(inputImageByteArray[byteCounter]);
-        int r = c.getRed();
-        int g = c.getGreen();
-        int b = c.getBlue();
-        if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-          if (k % 3 == 0) {
-            inputImageByteArray[byteCounter] = addABit(r, g, b, "r");
-          } else if (k % 3 == 1) {
-            inputImageByteArray[byteCounter] = addABit(r, g, b, "g");
-            if (k == 7) {
-              byteCounter++;
-            }
-          } else if (k % 3 == 2) {
-            inputImageByteArray[byteCounter] = addABit(r, g, b, "b");
-            byteCounter++;
-          }
-        } else {
-          if (k % 3 == 2 || k == 7) {
-            byteCounter++;
-          }
-        }
-      }
-    }
-    System.out.println("Encoding " + asciiArray.length + " letters ("
-      + asciiArray.length + " bytes" + ") into " + byteCounter
-      + " pixels (" + byteCounter * 3 + " bytes)");
-//        return inputImageByteArray;
+    conceal(message, 0, 1);
   }
 
   /**
    * This method is a secondary to steganographi. It takes the message to encode
    * and flags to to tell it which colored bytes to hide the image in. It then
-   * converts the message to a byte array of the ASCII values in that message.
-   * It then iterates over every byte (letter) in the array, again
-   * inner-iterating over every bit in those bytes. If the bit is equal to 1, we
-   * increment the flagged colors pixels value by 1 to change the lowest order
-   * bit. Else if the bit being read is 0, we don't change any flagged colors
-   * bytes because 0 already exists in the lowest bit in those bytes. Each bit
-   * of the message is stored sequentially in the R, G, B values respectively.
-   * Since one letter is one byte (8 bits), one letter will fit in three pixels
-   * (9 bytes -- 1 bit in each red, green, blue byte) and there will be a
-   * leftover bit in the blue byte of every third pixel.
+   * converts the message to a byte array of the ASCII values in that message
+   * and has LsbEngine write every bit of those bytes into the lowest order bit
+   * of the flagged colors bytes. Each bit of the message is stored
+   * sequentially in the R, G, B values respectively, packed densely so no
+   * colored byte is left unused.
    *
    * @param message - The message that will be encoded into the image.
    * @param flags   - Flags that will encode in a specific way.
@@ -117,370 +239,829 @@ class Steganografier {
    *                <p>
    *                -b : encodes the message into the blue pixels only. (Code
    *                6).
+   *                <p>
+   *                -rgba, -a, -ra, -ga, -ba, -rga, -rba, -gba : the same, with
+   *                the alpha bytes as well (Codes 7 to 14), in any order. The
+   *                image must have alpha and be saved as a png, qoi or pam,
+   *                which keep it (see StegImage.getChannelMask()).
+   *                <p>
+   *                Any of the flags can end with a digit from 1 to 4 (-rgb2,
+   *                -b4) to use that many of the lowest bits of each colored
+   *                byte instead of just the lowest one. This fits up to 4
+   *                times as much into every pixel, at the cost of changing
+   *                the colors a little more. The number of bits is recorded in
+   *                the PayloadHeader, so reveal does not need to be told.
    *
    * @return
+   *
+   * @throws IllegalStateException if the message read back from the image
+   *                               does not match (see setVerify())
    */
   public void selectableSteganographi(String message, String flags) {
-    int flagCode = verifyFlags(flags);
-    if (flagCode == 0) {
-      steganographi(message);
+    checkChannels(flags);
+    if (stegImage.isMapped() || key != null) {
+      // a mapped image is never copied whole, so the message is streamed in;
+      // a scattered one goes the same way, so it is written in one place
+      try {
+        concealStream(new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)), flags);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e); // can't happen with a byte array
+      }
     } else {
-      inputImageByteArray = clearLowestBit();
-      int byteCounter = 0;
-      byte[] asciiArray = message.getBytes(StandardCharsets.US_ASCII);
-
-      for (int i = 0; i < asciiArray.length; i++) {
-        String letterAsciiBinary = insertPadding(asciiArray[i]);
-        for (int k = 0; k < letterAsciiBinary.length(); k++) {
-          Color c = new Color(inputImageByteArray[byteCounter]);
-          int r = c.getRed();
-          int g = c.getGreen();
-          int b = c.getBlue();
-          if (flagCode == 1) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              if (k % 2 == 0) {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "r");
-              } else {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "g");
-                byteCounter++;
-              }
-            } else {
-              if (k % 2 == 1) {
-                byteCounter++;
-              }
-            }
-          } else if (flagCode == 2) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              if (k % 2 == 0) {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "r");
-              } else {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "b");
-                byteCounter++;
-              }
-            } else {
-              if (k % 2 == 1) {
-                byteCounter++;
-              }
-            }
-          } else if (flagCode == 3) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              if (k % 2 == 0) {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "g");
-              } else {
-                inputImageByteArray[byteCounter] = addABit(r, g, b, "b");
-                byteCounter++;
-              }
-            } else {
-              if (k % 2 == 1) {
-                byteCounter++;
-              }
-            }
-          } else if (flagCode == 4) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              inputImageByteArray[byteCounter] = addABit(r, g, b, "r");
-            }
-            byteCounter++;
-          } else if (flagCode == 5) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              inputImageByteArray[byteCounter] = addABit(r, g, b, "g");
-            }
-            byteCounter++;
-          } else if (flagCode == 6) {
-            if (letterAsciiBinary.substring(k, k + 1).equals("1")) {
-              inputImageByteArray[byteCounter] = addABit(r, g, b, "b");
-            }
-            byteCounter++;
-          }
+      int pixelCount = conceal(message, verifyFlags(flags), bitsPerChannel(flags));
+      this.stegImage.setPixels(pixels(), pixelCount);
+      // concealStream() already reads the whole payload back under FULL
+      if (verify == Verify.FULL) {
+        StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.VERIFY);
+        if (!message.equals(selectableDesteganographi(flags))) {
+          throw new IllegalStateException("The message revealed from the image does not match the"
+            + " message that was concealed");
         }
+        timer.stop(message.length(), 0);
       }
+    }
+  }
 
-      System.out.println("Encoding " + asciiArray.length + " letters ("
-        + asciiArray.length + " bytes" + ") into " + byteCounter
-        + " pixels (" + byteCounter * 3 + " bytes)");
-
+  /**
+   * This method writes the PayloadHeader into the first pixels and then hands
+   * the ASCII bytes of the message, encoded with the codec, to the LsbEngine
+   * for the flag code, which
+   * writes them into the pixels following the header. The engine clears and
+   * sets each lowest bit as it goes, so only the pixels holding the header and
+   * the message are touched and the rest of the image is left as it is.
+   * <p>
+   * Unless verify is NONE, the message is written a chunk at a time and each
+   * chunk is read straight back while its pixels are still in the cache, so
+   * checking costs far less than decoding the image again.
+   *
+   * @param message
+   * @param flagCode
+   * @param bitsPerChannel
+   *
+   * @return the number of pixels, from the start of the image, that were
+   * written to
+   */
+  private int conceal(String message, int flagCode, int bitsPerChannel) {
+    byte[] asciiArray = message.getBytes(StandardCharsets.US_ASCII);
+    PayloadCodec payloadCodec = codec != null ? codec : PayloadCodec.choose(asciiArray, asciiArray.length);
+    byte[] payload = payloadCodec.encode(asciiArray);
+    CRC32C checksum = new CRC32C();
+    checksum.update(payload);
+    PayloadHeader payloadHeader = new PayloadHeader(PayloadHeader.maskForFlagCode(flagCode),
+      payloadCodec.getId(), bitsPerChannel,
+      payload.length, checksum.getValue());
+    byte[] header = payloadHeader.toBytes();
+    LsbEngine engine = new LsbEngine(flagCode, bitsPerChannel);
+    long capacity = (long) stegImage.getWidth() * stegImage.getHeight() - payloadHeader.getFirstPixel();
+    if (engine.capacity(capacity) < payload.length) {
+      throw new IllegalArgumentException("The message of " + payload.length + " bytes does not"
+        + " fit in the image, which holds " + engine.capacity(capacity) + " bytes");
     }
-    this.stegImage.setPixels(inputImageByteArray);
-//        return inputImageByteArray;
+    int[] pixels = pixels();
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EMBED);
+    LsbEngine.header(flagCode).embed(pixels, 0, header, 0, header.length);
+    int pixelCount = payloadHeader.getFirstPixel();
+    if (verify == Verify.NONE) {
+      pixelCount += engine.embed(pool, pixels, pixelCount, payload, 0, payload.length);
+      timer.stop(payload.length, pixelCount);
+    } else {
+      timer.stop(0, pixelCount);
+      checkHeader(readHeaderBytes(pixels, flagCode), header);
+      byte[] readBack = new byte[Math.min(chunkSize(engine), payload.length)];
+      CRC32C readBackChecksum = new CRC32C();
+      for (int off = 0; off < payload.length; off += readBack.length) {
+        int length = Math.min(readBack.length, payload.length - off);
+        timer = StegMetrics.start(StegMetrics.Stage.EMBED);
+        int chunkPixels = engine.embed(pool, pixels, pixelCount, payload, off, length);
+        timer.stop(length, chunkPixels);
+        timer = StegMetrics.start(StegMetrics.Stage.VERIFY);
+        pixelCount += engine.extract(pool, pixels, pixelCount, readBack, 0, length);
+        readBackChecksum.update(readBack, 0, length);
+        timer.stop(length, chunkPixels);
+      }
+      checkPayload(readBackChecksum, checksum.getValue());
+    }
+    Log.info("Encoding " + asciiArray.length + " letters ("
+      + payload.length + " bytes" + encodedWith(payloadCodec) + ") into " + pixelCount
+      + " pixels (" + pixelCount * 3 + " bytes)");
+    return pixelCount;
   }
 
   /**
    * This method decodes the message from the int[] pixels that you feed it and
-   * it returns the message as a string.
+   * it returns the message as a string. If the pixels start with a
+   * PayloadHeader the message it describes is read, otherwise the bits are
+   * read in the -rgb layout until the first byte of all 0's, which marks the
+   * end of the message.
    *
    * @param pixels
    *
    * @return
    */
   public String desteganographi(int[] pixels) {
-    ArrayList messageBytes = new ArrayList();
-    String decodedString = "";
-
-    for (int i = 0; i < pixels.length; i++) {
-      Color c = new Color(pixels[i]);
-      String r = Integer.toBinaryString(c.getRed());
-      String g = Integer.toBinaryString(c.getGreen());
-      String b = Integer.toBinaryString(c.getBlue());
-      messageBytes.add(r.substring(r.length() - 1, r.length()));
-      messageBytes.add(g.substring(g.length() - 1, g.length()));
-      messageBytes.add(b.substring(b.length() - 1, b.length()));
-
-      //Break the loop if the message has been fully read.
-      // Probably need a better way to break this.
-      // May be possible that a specific sequence of 2 characters results in
-      // multiple 0's
-      if (i > 9) {
-        if (messageBytes.get(i - 8).equals("0")
-          && messageBytes.get(i - 7).equals("0")
-          && messageBytes.get(i - 6).equals("0")
-          && messageBytes.get(i - 5).equals("0")
-          && messageBytes.get(i - 4).equals("0")
-          && messageBytes.get(i - 3).equals("0")
-          && messageBytes.get(i - 2).equals("0")
-          && messageBytes.get(i - 1).equals("0")
-          && messageBytes.get(i).equals("0")) {
-          break;
-        }
-      }
+    PayloadHeader header = readHeader(pixels, 0);
+    if (header == null) {
+      return decode(pixels, 0);
     }
-
-    //Crack the code :)
-    for (int i = 0; i < messageBytes.size(); i = i + 9) {
-      String ss = messageBytes.get(i).toString();
-      for (int k = 1; k < 8; k++) {
-        ss = ss + messageBytes.get(i + k).toString();
-      }
-      if (ss.equals("00000000")) {
-        break; //if we read this byte, we are at the end of the message.
-      }
-      int asciiCode = Integer.parseInt(ss, 2);
-      decodedString = decodedString + Character.toString((char) asciiCode);
-    }
-
-    return decodedString;
+    return new String(reveal(pixels, header), StandardCharsets.ISO_8859_1);
   }
 
   /**
    * This method decodes the message from the int[] pixels that you feed it and
-   * it returns the message as a string.
+   * it returns the message as a string. If the image starts with a
+   * PayloadHeader, exactly the number of bytes recorded in the header is read
+   * from the colour bytes recorded in the header, and the flags are ignored.
+   * Otherwise the flags are used to read up to the first 0 byte.
    *
    * @param flags
    *
    * @return
+   *
+   * @throws IllegalArgumentException if the header is damaged, does not fit
+   *                                  the image, or the message does not match
+   *                                  the checksum in the header
    */
   public String selectableDesteganographi(String flags) {
     int flagCode = verifyFlags(flags);
-    if (flagCode == 0) {
-      return desteganographi(this.inputImageByteArray);
-    } else {
-      ArrayList messageBytes = new ArrayList();
-      String decodedString = "";
-      for (int i = 0; i < this.inputImageByteArray.length; i++) {
-        Color c = new Color(this.inputImageByteArray[i]);
-        String r = Integer.toBinaryString(c.getRed());
-        String g = Integer.toBinaryString(c.getGreen());
-        String b = Integer.toBinaryString(c.getBlue());
-
-        if (flagCode == 1) {
-          messageBytes.add(r.substring(r.length() - 1, r.length()));
-          messageBytes.add(g.substring(g.length() - 1, g.length()));
-        } else if (flagCode == 2) {
-          messageBytes.add(r.substring(r.length() - 1, r.length()));
-          messageBytes.add(b.substring(b.length() - 1, b.length()));
-        } else if (flagCode == 3) {
-          messageBytes.add(g.substring(g.length() - 1, g.length()));
-          messageBytes.add(b.substring(b.length() - 1, b.length()));
-        } else if (flagCode == 4) {
-          messageBytes.add(r.substring(r.length() - 1, r.length()));
-        } else if (flagCode == 5) {
-          messageBytes.add(g.substring(g.length() - 1, g.length()));
-        } else if (flagCode == 6) {
-          messageBytes.add(b.substring(b.length() - 1, b.length()));
-        }
+    if ((stegImage.isMapped() || key != null)
+      && readHeaderBand(flagCode) != null) {
+      // a mapped image is never copied whole, so the message is streamed out;
+      // so is a scattered one, since it was streamed in
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+        revealStream(out, flagCode);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e); // can't happen with a byte array
+      }
+      return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+    int[] pixels = pixels();
+    PayloadHeader header = readHeader(pixels, flagCode);
+    if (header == null) {
+      return decode(pixels, flagCode);
+    }
+    return new String(reveal(pixels, header), StandardCharsets.ISO_8859_1);
+  }
 
-        //Break the loop if the message has been fully read.
-        if (i > 8) {
-          if (messageBytes.get(i - 7).equals("0")
-            && messageBytes.get(i - 6).equals("0")
-            && messageBytes.get(i - 5).equals("0")
-            && messageBytes.get(i - 4).equals("0")
-            && messageBytes.get(i - 3).equals("0")
-            && messageBytes.get(i - 2).equals("0")
-            && messageBytes.get(i - 1).equals("0")
-            && messageBytes.get(i).equals("0")) {
-            break;
+  /**
+   * This method conceals everything that can be read from in. Unlike
+   * selectableSteganographi() the payload can be any binary data, and it is
+   * never held in memory as a whole: it is read in chunks, and each chunk is
+   * written into the band of rows that holds it before the next one is read.
+   * The PayloadHeader is written last, once the length and checksum are
+   * known. Without a codec set, the first PayloadCodec.LARGE_LENGTH bytes are
+   * read ahead to choose one. Unless verify is NONE, each chunk is read back from the image as
+   * soon as it is written (see setVerify()). Call stegImage.saveImage()
+   * afterwards to save the image.
+   *
+   * @param in    - the payload to conceal
+   * @param flags - see the documentation for selectableSteganographi()
+   *
+   * @return the number of bytes concealed
+   *
+   * @throws IOException              if in can't be read
+   * @throws IllegalArgumentException if the payload does not fit in the image
+   * @throws IllegalStateException    if the payload read back from the image
+   *                                  does not match
+   */
+  public long concealStream(InputStream in, String flags) throws IOException {
+    int flagCode = checkChannels(flags);
+    int bitsPerChannel = bitsPerChannel(flags);
+    LsbEngine engine = new LsbEngine(flagCode, bitsPerChannel);
+    long capacity = (long) stegImage.getWidth() * stegImage.getHeight();
+    int firstPixel = PayloadHeader.pixels(PayloadHeader.maskForFlagCode(flagCode));
+    if (capacity < firstPixel) {
+      throw new IllegalArgumentException("The image is too small to hold a payload");
+    }
+    int chunkLength = chunkSize(engine);
+    BufferPool buffers = stegImage.getBufferPool();
+    byte[] chunk = buffers.bytes(chunkLength);
+    byte[] readBack = verify == Verify.NONE ? null : buffers.bytes(chunkLength);
+    int[] band = newBand(engine.pixelsFor(chunkLength));
+    try {
+      int[] pixels = key == null ? null : pixels();
+      PixelScatter scatter = key == null ? null : scatterFor(capacity, firstPixel);
+      PayloadCodec payloadCodec = codec;
+      if (payloadCodec == null) {
+        PushbackInputStream sampled = new PushbackInputStream(in, PayloadCodec.LARGE_LENGTH);
+        byte[] sample = sampled.readNBytes(PayloadCodec.LARGE_LENGTH);
+        sampled.unread(sample);
+        payloadCodec = PayloadCodec.choose(sample, sample.length);
+        in = sampled;
+      }
+      CountingInputStream counted = new CountingInputStream(in);
+      InputStream encoded = payloadCodec.encode(counted);
 
+      CRC32C checksum = new CRC32C();
+      CRC32C readBackChecksum = new CRC32C();
+      long pixel = firstPixel;
+      long length = 0;
+      int read;
+      while ((read = encoded.readNBytes(chunk, 0, chunkLength)) > 0) {
+        length += read;
+        if (length > Integer.MAX_VALUE || pixel + engine.pixelsFor(read) > capacity) {
+          throw new IllegalArgumentException("The payload does not fit in the image");
+        }
+        checksum.update(chunk, 0, read);
+        int slot = (int) (pixel - firstPixel);
+        StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EMBED);
+        int pixelCount = scatter == null ? writeBand(engine, pixel, chunk, read, band)
+          : scatter.embed(pool, engine, pixels, slot, chunk, 0, read);
+        timer.stop(read, pixelCount);
+        if (readBack != null) {
+          timer = StegMetrics.start(StegMetrics.Stage.VERIFY);
+          if (scatter == null) {
+            readBand(engine, pixel, readBack, read, band);
+          } else {
+            scatter.extract(pool, engine, pixels, slot, readBack, 0, read);
           }
+          readBackChecksum.update(readBack, 0, read);
+          timer.stop(read, pixelCount);
         }
+        pixel += pixelCount;
+      }
+      encoded.close();
+      if (scatter != null) {
+        // hand the scattered pixels back before the header goes into the first rows
+        stegImage.writeRows(0, stegImage.getHeight(), pixels);
+      }
+      if (readBack != null) {
+        checkPayload(readBackChecksum, checksum.getValue());
       }
 
-      //Crack the code :)
-      for (int i = 0; i < messageBytes.size(); i = i + 8) {
-        String ss = messageBytes.get(i).toString();
-        for (int k = 1; k < 8; k++) {
-          ss = ss + messageBytes.get(i + k).toString();
-        }
-        if (ss.equals("00000000")) {
-          break; //if we read this byte, we are at the end of the message.
+      int layout = bitsPerChannel | (scatter == null ? 0 : PayloadHeader.LAYOUT_KEYED);
+      byte[] header = new PayloadHeader(PayloadHeader.maskForFlagCode(flagCode),
+        payloadCodec.getId(), layout, (int) length, checksum.getValue()).toBytes();
+      StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EMBED);
+      writeBand(LsbEngine.header(flagCode), 0, header, header.length, band);
+      timer.stop(0, firstPixel);
+      if (readBack != null) {
+        byte[] bytes = new byte[PayloadHeader.SIZE];
+        readBand(LsbEngine.header(flagCode), 0, bytes, bytes.length, band);
+        checkHeader(bytes, header);
+      }
+      if (verify == Verify.FULL) {
+        timer = StegMetrics.start(StegMetrics.Stage.VERIFY);
+        revealStream(OutputStream.nullOutputStream(), flagCode);
+        timer.stop(length, pixel);
+      }
+      Log.info("Encoding " + counted.count + " bytes" + (payloadCodec == PayloadCodec.NONE ? ""
+        : " (" + length + encodedWith(payloadCodec) + ")") + " into " + pixel + " pixels ("
+        + pixel * 3 + " bytes)");
+      return counted.count;
+    } finally {
+      buffers.release(chunk);
+      buffers.release(readBack);
+      buffers.release(band);
+    }
+  }
+
+  /**
+   * This method reveals the payload described by the PayloadHeader and writes
+   * it to out, decoded, reading it a band of rows at a time.
+   *
+   * @param out - where the payload is written to
+   *
+   * @return the number of bytes revealed
+   *
+   * @throws IOException              if out can't be written to
+   * @throws IllegalArgumentException if the image has no header, the header
+   *                                  is damaged, or the payload does not
+   *                                  match the checksum in the header (which
+   *                                  is only known once all of it has been
+   *                                  written to out)
+   */
+  public long revealStream(OutputStream out) throws IOException {
+    return revealStream(out, 0);
+  }
+
+  /**
+   * This method reveals the payload like revealStream(OutputStream), looking
+   * for the header in the layout of flagCode first (see readHeader()).
+   */
+  private long revealStream(OutputStream out, int flagCode) throws IOException {
+    long capacity = (long) stegImage.getWidth() * stegImage.getHeight();
+    PayloadHeader header = readHeaderBand(flagCode);
+    if (header == null) {
+      throw new IllegalArgumentException("The image does not have a payload header");
+    }
+    LsbEngine engine = engineFor(header, capacity);
+    PixelScatter scatter = header.isKeyed() ? scatterFor(capacity, header.getFirstPixel()) : null;
+    int[] pixels = scatter == null ? null : pixels();
+    PayloadCodec payloadCodec = PayloadCodec.forId(header.getCodec());
+    CountingOutputStream counted = new CountingOutputStream(out);
+    OutputStream decoded = payloadCodec.decode(counted, maxPayloadLength);
+
+    int chunkLength = Math.min(chunkSize(engine), header.getLength());
+    BufferPool buffers = stegImage.getBufferPool();
+    byte[] chunk = buffers.bytes(chunkLength);
+    int[] band = scatter == null ? newBand(engine.pixelsFor(chunkLength)) : null;
+    try {
+      CRC32C checksum = new CRC32C();
+      long pixel = header.getFirstPixel();
+      long remaining = header.getLength();
+      while (remaining > 0) {
+        int length = (int) Math.min(chunkLength, remaining);
+        StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EXTRACT);
+        int pixelCount = scatter == null ? readBand(engine, pixel, chunk, length, band)
+          : scatter.extract(pool, engine, pixels, (int) (pixel - header.getFirstPixel()), chunk, 0, length);
+        timer.stop(length, pixelCount);
+        pixel += pixelCount;
+        checksum.update(chunk, 0, length);
+        remaining -= length;
+        try {
+          decoded.write(chunk, 0, length);
+        } catch (IllegalArgumentException e) {
+          throw undecodable(header, e);
         }
-        int asciiCode = Integer.parseInt(ss, 2);
-        decodedString = decodedString + Character.toString((char) asciiCode);
       }
-      return decodedString;
+      try {
+        decoded.close();
+      } catch (IllegalArgumentException e) {
+        throw undecodable(header, e);
+      }
+      checkChecksum(header, checksum);
+      return counted.count;
+    } finally {
+      buffers.release(chunk);
+      buffers.release(band);
     }
+  }
 
+  /**
+   * This method returns the number of payload bytes the streaming methods
+   * work on at a time: a whole number of the engine's groups, so every chunk
+   * starts on a fresh pixel.
+   *
+   * @param engine
+   *
+   * @return
+   */
+  private int chunkSize(LsbEngine engine) {
+    return engine.bytesPerGroup() * Math.max(1, chunkPixels() / engine.pixelsPerGroup());
   }
 
   /**
-   * This method is awesome because it uses the bitwise & operation against 254
-   * (or 11111110 in binary) to clear every low order bit setting it to 0.
-   * Because we are only clearing/using the lowest order bit, the image appears
-   * to be unaffected though the RGB values are in fact likely 1 value lower
-   * than what it probably should be.
+   * This method returns the number of pixels the streaming methods work on at
+   * a time, which grows with the number of threads so each one gets a band.
    *
    * @return
    */
-  public int[] clearLowestBit() {
-    for (int i = 0; i < inputImageByteArray.length; i++) {
-      Color c = new Color(inputImageByteArray[i]);
-      int r = c.getRed() & 254; // 254 = 11111110
-      int g = c.getGreen() & 254;
-      int b = c.getBlue() & 254;
-      int rgb = getRGB(r, g, b);
-      inputImageByteArray[i] = rgb;
+  private int chunkPixels() {
+    return pool == null ? STREAM_CHUNK_PIXELS : STREAM_CHUNK_PIXELS * pool.getParallelism();
+  }
+
+  /**
+   * This method returns a band big enough for the rows that pixelCount pixels
+   * starting anywhere in a row can cover (and for the header), from the pool
+   * of the image. Give it back with release() once done.
+   *
+   * @param pixelCount
+   *
+   * @return
+   */
+  private int[] newBand(long pixelCount) {
+    int width = stegImage.getWidth();
+    long pixels = Math.max(pixelCount, PayloadHeader.MAX_PIXELS);
+    long rows = Math.min((pixels + width - 1) / width + 1, stegImage.getHeight());
+    return stegImage.getBufferPool().ints((int) (rows * width));
+  }
+
+  /**
+   * This method writes length bytes into the pixels starting at firstPixel by
+   * reading the rows holding them into band, embedding the bytes and writing
+   * the rows back.
+   *
+   * @return the number of pixels written to
+   */
+  private int writeBand(LsbEngine engine, long firstPixel, byte[] bytes, int length, int[] band) {
+    int width = stegImage.getWidth();
+    int firstRow = (int) (firstPixel / width);
+    int rows = (int) ((firstPixel + engine.pixelsFor(length) - 1) / width) - firstRow + 1;
+    stegImage.readRows(firstRow, rows, band);
+    int pixelCount = engine.embed(pool, band, (int) (firstPixel - (long) firstRow * width), bytes, 0, length);
+    stegImage.writeRows(firstRow, rows, band);
+    return pixelCount;
+  }
+
+  /**
+   * This method reads length bytes out of the pixels starting at firstPixel
+   * by reading the rows holding them into band.
+   *
+   * @return the number of pixels read from
+   */
+  private int readBand(LsbEngine engine, long firstPixel, byte[] bytes, int length, int[] band) {
+    int width = stegImage.getWidth();
+    int firstRow = (int) (firstPixel / width);
+    int rows = (int) ((firstPixel + engine.pixelsFor(length) - 1) / width) - firstRow + 1;
+    stegImage.readRows(firstRow, rows, band);
+    return engine.extract(pool, band, (int) (firstPixel - (long) firstRow * width), bytes, 0, length);
+  }
+
+  /**
+   * This method returns the LsbEngine for the layout recorded in the header,
+   * after checking that the payload it describes fits in an image of
+   * pixelCount pixels.
+   *
+   * @param header
+   * @param pixelCount
+   *
+   * @return
+   */
+  private LsbEngine engineFor(PayloadHeader header, long pixelCount) {
+    LsbEngine engine = header.engine();
+    if (header.getFirstPixel() + engine.pixelsFor(header.getLength()) > pixelCount) {
+      throw new IllegalArgumentException("Payload of " + header.getLength()
+        + " bytes does not fit in the image");
     }
-    return inputImageByteArray;
+    return engine;
   }
 
   /**
-   * This method takes a red byte, green byte, and a blue byte and fixes those
-   * bytes together to form the 32 bit RGB bytes which are stored into our pixel
-   * arrays.
+   * This method returns the PixelScatter for the key over the pixels after
+   * the header.
    *
-   * @param red
-   * @param green
-   * @param blue
+   * @param pixelCount - the number of pixels in the image
+   * @param firstPixel - the pixel after the header
    *
    * @return
+   *
+   * @throws IllegalArgumentException if there is no key
    */
-  private int getRGB(int red, int green, int blue) {
-    int rgb = red;
-    rgb = (rgb << 8) + green;
-    rgb = (rgb << 8) + blue;
-    return rgb;
+  private PixelScatter scatterFor(long pixelCount, int firstPixel) {
+    if (key == null) {
+      throw new IllegalArgumentException("The payload was concealed with a key, which is needed"
+        + " to reveal it");
+    }
+    return new PixelScatter(key, firstPixel, (int) (pixelCount - firstPixel),
+      stegImage.getBufferPool());
   }
 
   /**
-   * This is kind of a dumb method and it probably should be handled in a more
-   * conventional way, however, it works for what I need it for. This method
-   * inserts the proper amount of 0's to the beginning of the byte string if
-   * that particular byte string does not have enough 0's. We need to do this
-   * because we are reading and writing binary by the byte (8 bits, in case you
-   * didn't know)
+   * This method reads the PayloadHeader from the first pixels. The header is
+   * in the colour bytes of the payload, which are only known once it is read,
+   * so the layout of every flag code is tried, that of flagCode first, until
+   * one holds the magic and the channel mask of that layout.
+   *
+   * @param pixels     - the first pixels of the image, at least
+   *                   PayloadHeader.MAX_PIXELS of them unless the image is
+   *                   smaller
+   * @param pixelCount - the number of pixels in pixels that are of the image
+   * @param flagCode   - the flag code whose layout is tried first
    *
-   * @param asciiKey
+   * @return the header, or null if the image does not have one
+   */
+  private static PayloadHeader readHeader(int[] pixels, long pixelCount, int flagCode) {
+    for (int i = -1; i < LsbEngine.FLAG_CODES; i++) {
+      int code = i < 0 ? flagCode : i;
+      int firstPixel = PayloadHeader.pixels(PayloadHeader.maskForFlagCode(code));
+      if ((i >= 0 && code == flagCode) || firstPixel > pixelCount) {
+        continue;
+      }
+      PayloadHeader header = PayloadHeader.parse(readHeaderBytes(pixels, code));
+      if (header != null && header.getChannelMask() == PayloadHeader.maskForFlagCode(code)) {
+        return header;
+      }
+    }
+    return null;
+  }
+
+  private PayloadHeader readHeader(int[] pixels, int flagCode) {
+    return readHeader(pixels, pixels.length, flagCode);
+  }
+
+  private static byte[] readHeaderBytes(int[] pixels, int flagCode) {
+    byte[] bytes = new byte[PayloadHeader.SIZE];
+    // the header is too short for the gather table of extract() to pay off
+    LsbEngine.header(flagCode).extractScalar(pixels, 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * This method returns true if the image starts with a PayloadHeader, so
+   * revealStream() can reveal it. Images concealed before the header existed
+   * can only be revealed with selectableDesteganographi().
    *
    * @return
+   *
+   * @throws IllegalArgumentException if the header is damaged
    */
-  private String insertPadding(int asciiKey) {
-    String letterAsciiBinary = Integer.toBinaryString(asciiKey);
-    if (letterAsciiBinary.length() == 7) {
-      letterAsciiBinary = "0" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 6) {
-      letterAsciiBinary = "00" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 5) {
-      letterAsciiBinary = "000" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 4) {
-      letterAsciiBinary = "0000" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 3) {
-      letterAsciiBinary = "00000" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 2) {
-      letterAsciiBinary = "000000" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
-    } else if (letterAsciiBinary.length() == 1) {
-      letterAsciiBinary = "0000000" + letterAsciiBinary.substring(0, letterAsciiBinary.length());
+  public boolean hasPayloadHeader() {
+    return readHeaderBand(0) != null;
+  }
+
+  /**
+   * This method reads the PayloadHeader from the first rows of the image,
+   * which is all of the image it looks at.
+   *
+   * @return the header, or null if the image does not have one
+   *
+   * @throws IllegalArgumentException if the header is damaged
+   */
+  public PayloadHeader getPayloadHeader() {
+    return readHeaderBand(0);
+  }
+
+  /**
+   * This method reads the PayloadHeader from the first rows of the image.
+   *
+   * @param flagCode - the flag code whose layout is tried first (see
+   *                 readHeader())
+   *
+   * @return the header, or null if the image does not have one
+   */
+  private PayloadHeader readHeaderBand(int flagCode) {
+    int width = stegImage.getWidth();
+    if (width == 0 || stegImage.getHeight() == 0) {
+      return null; // nothing was read
+    }
+    int rows = Math.min((PayloadHeader.MAX_PIXELS + width - 1) / width, stegImage.getHeight());
+    int[] band = stegImage.getBufferPool().ints(rows * width);
+    try {
+      stegImage.readRows(0, rows, band);
+      return readHeader(band, (long) rows * width, flagCode);
+    } finally {
+      stegImage.getBufferPool().release(band);
+    }
+  }
+
+  /**
+   * This method checks that the image has every colour byte the flags
+   * conceal into, and keeps it when it is saved (see
+   * StegImage.getChannelMask()).
+   *
+   * @param flags
+   *
+   * @return the flag code of the flags
+   *
+   * @throws IllegalArgumentException if the flags are invalid or ask for
+   *                                  alpha the image does not keep
+   */
+  private int checkChannels(String flags) {
+    int flagCode = verifyFlags(flags);
+    if ((PayloadHeader.maskForFlagCode(flagCode) & ~stegImage.getChannelMask()) != 0) {
+      throw new IllegalArgumentException("The image has no alpha that is saved, so it can't be"
+        + " concealed into with " + flags + "; use an image with alpha saved as a png, qoi or pam");
+    }
+    return flagCode;
+  }
+
+  /**
+   * This method checks that the header read back from the image is the
+   * header that was written.
+   *
+   * @param readBack
+   * @param header
+   *
+   * @throws IllegalStateException if they differ
+   */
+  private void checkHeader(byte[] readBack, byte[] header) {
+    if (!Arrays.equals(readBack, header)) {
+      throw new IllegalStateException("The header read back from the image does not match the"
+        + " header that was concealed");
+    }
+  }
+
+  /**
+   * This method checks the checksum of the payload read back from the image
+   * while concealing against the checksum of the payload.
+   *
+   * @param readBack
+   * @param checksum
+   *
+   * @throws IllegalStateException if they differ
+   */
+  private void checkPayload(CRC32C readBack, long checksum) {
+    if (readBack.getValue() != checksum) {
+      throw new IllegalStateException("The payload read back from the image does not match the"
+        + " payload that was concealed");
+    }
+  }
+
+  /**
+   * This method checks the checksum of a revealed payload against the
+   * checksum in its header. Headers without a checksum, and verify NONE, are
+   * not checked.
+   *
+   * @param header
+   * @param revealed
+   *
+   * @throws IllegalArgumentException if they differ
+   */
+  private void checkChecksum(PayloadHeader header, CRC32C revealed) {
+    if (verify != Verify.NONE && header.hasChecksum()
+      && header.getChecksum() != revealed.getValue()) {
+      throw new IllegalArgumentException((header.isKeyed() ? "The key is wrong or the payload is"
+        + " damaged" : "The payload is damaged") + ": it does not match the checksum in its header");
+    }
+  }
+
+  /**
+   * This method returns the error for a payload its codec can't decode. With
+   * a wrong key the bytes are usually garbage that fails to decode before the
+   * checksum is known, so a keyed payload is reported like a checksum
+   * mismatch.
+   *
+   * @param header
+   * @param e      - the error from the codec
+   *
+   * @return
+   */
+  private IllegalArgumentException undecodable(PayloadHeader header, IllegalArgumentException e) {
+    if (!header.isKeyed()) {
+      return e;
+    }
+    return new IllegalArgumentException("The key is wrong or the payload is damaged: it can't be"
+      + " decoded", e);
+  }
+
+  /**
+   * This method returns how the log lines of conceal describe a codec.
+   *
+   * @param payloadCodec
+   *
+   * @return
+   */
+  private static String encodedWith(PayloadCodec payloadCodec) {
+    return payloadCodec == PayloadCodec.NONE ? ""
+      : " after " + payloadCodec.name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * This method reads the payload that the header describes and checks it
+   * against the checksum in the header. Only the pixels holding the header and
+   * the payload are read.
+   *
+   * @param pixels
+   * @param header
+   *
+   * @return
+   */
+  private byte[] reveal(int[] pixels, PayloadHeader header) {
+    LsbEngine engine = engineFor(header, pixels.length);
+    byte[] payload = new byte[header.getLength()];
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EXTRACT);
+    int pixelCount;
+    if (header.isKeyed()) {
+      pixelCount = scatterFor(pixels.length, header.getFirstPixel()).extract(pool, engine, pixels, 0, payload, 0, payload.length);
     } else {
-      System.out.println("Error: Something is incredibly wrong");
+      pixelCount = engine.extract(pool, pixels, header.getFirstPixel(), payload, 0, payload.length);
+    }
+    timer.stop(payload.length, pixelCount);
+    if (verify != Verify.NONE && header.hasChecksum()) {
+      CRC32C checksum = new CRC32C();
+      checksum.update(payload);
+      checkChecksum(header, checksum);
+    }
+    try {
+      return PayloadCodec.forId(header.getCodec()).decode(payload, maxPayloadLength);
+    } catch (IllegalArgumentException e) {
+      throw undecodable(header, e);
     }
-    return letterAsciiBinary;
   }
 
   /**
-   * HEHE This is a method that I used for debugging. It prints out the RGB
-   * values in binary. I used this to check the last bit of every RGB value in
-   * every pixel. The order RGB matters.
+   * This method has the LsbEngine for the flag code read a message without a
+   * header out of the pixels in a single pass, up to the first 0 byte, and
+   * turns it back into a string.
+   *
+   * @param pixels
+   * @param flagCode
+   *
+   * @return
+   */
+  private String decode(int[] pixels, int flagCode) {
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.EXTRACT);
+    LsbEngine engine = new LsbEngine(flagCode);
+    byte[] message = engine.extractTerminated(pixels, 0);
+    timer.stop(message.length, Math.min(pixels.length, engine.pixelsFor(message.length + 1)));
+    // every byte maps straight onto the char with the same code
+    return new String(message, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * This method is awesome because it uses the bitwise & operation against 254
+   * (or 11111110 in binary) to clear every low order bit setting it to 0.
+   * Because we are only clearing/using the lowest order bit, the image appears
+   * to be unaffected though the RGB values are in fact likely 1 value lower
+   * than what it probably should be. Concealing no longer needs this pass, but
+   * it is still the way to wipe a message (and anything else) from the image.
    *
-   * @param newPixels
+   * @return
    */
-  private void printBins(int[] newPixels) {
-    System.out.println("Printing Bins");
-    for (int i = 0; i < newPixels.length; i++) {
-      Color c = new Color(newPixels[i]);
-      System.out.println("r: " + Integer.toBinaryString(c.getRed()));
-      System.out.println("g: " + Integer.toBinaryString(c.getGreen()));
-      System.out.println("b: " + Integer.toBinaryString(c.getBlue()));
+  public int[] clearLowestBit() {
+    int[] pixels = pixels();
+    StegMetrics.Timer timer = StegMetrics.start(StegMetrics.Stage.CLEAR);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] &= 0xFFFEFEFE; // 11111110 in each of R, G and B
     }
+    timer.stop(0, pixels.length);
+    return pixels;
   }
 
   /**
-   * This method ensures that the flags entered were valid, and then assigns a
-   * flagCode to the flag codes that were passed in.
+   * This method returns the number of low bits of each colored byte the flags
+   * ask for: the digit at the end of the flags, or 1 if there is none.
    *
    * @param flags - see the documentation for selectableSteganographi()
    *
    * @return
+   *
+   * @throws IllegalArgumentException if the digit is not from 1 to 4
    */
-  private int verifyFlags(String flags) {
-
-    //TODO this should all be done using regex
-    if (flags.equals("-rgb") || flags.equals("-rbg") || flags.equals("-grb")
-      || flags.equals("-gbr") || flags.equals("-brg")
-      || flags.equals("-bgr") || flags.equals("-RGB")
-      || flags.equals("-RBG") || flags.equals("-GRB")
-      || flags.equals("-GBR") || flags.equals("-BRG")
-      || flags.equals("-BGR")) {
-      return 0;
-    } else if (flags.equals("-rg") || flags.equals("-RG")
-      || flags.equals("-gr") || flags.equals("-GR")) {
+  static int bitsPerChannel(String flags) {
+    char last = flags.charAt(flags.length() - 1);
+    if (!Character.isDigit(last)) {
       return 1;
-    } else if (flags.equals("-rb") || flags.equals("-RB")
-      || flags.equals("-br") || flags.equals("-BR")) {
-      return 2;
-    } else if (flags.equals("-gb") || flags.equals("-GB")
-      || flags.equals("-bg") || flags.equals("-BG")) {
-      return 3;
-    } else if (flags.equals("-r") || flags.equals("-R")) {
-      return 4;
-    } else if (flags.equals("-g") || flags.equals("-G")) {
-      return 5;
-    } else if (flags.equals("-b") || flags.equals("-B")) {
-      return 6;
-    } else {
-      System.out.println("Error: invalid set of flags - " + flags);
-      System.exit(0);
-      return -1;
     }
+    int bits = last - '0';
+    if (bits < 1 || bits > LsbEngine.MAX_BITS) {
+      throw new IllegalArgumentException("invalid number of bits per color - " + flags);
+    }
+    return bits;
   }
 
   /**
-   * This method adds a 1 to the value of the color pixel that was passed in
-   * color. For our purpose, it replaces the 0 with a 1 in the lowest order bit
-   * of the right colored byte of its pixel.
+   * This method ensures that the flags entered were valid, and then assigns a
+   * flagCode to the flag codes that were passed in.
    *
-   * @param r
-   * @param g
-   * @param b
-   * @param color
+   * @param flags - see the documentation for selectableSteganographi()
    *
    * @return
+   *
+   * @throws IllegalArgumentException if the flags are not valid
    */
-  private int addABit(int r, int g, int b, String color) {
-    if (color.equals("r")) {
-      r += 1;
-    } else if (color.equals("g")) {
-      g += 1;
-    } else if (color.equals("b")) {
-      b += 1;
+  static int verifyFlags(String flags) {
+    String colors = flags;
+    if (colors.length() > 2 && Character.isDigit(colors.charAt(colors.length() - 1))) {
+      colors = colors.substring(0, colors.length() - 1); // see bitsPerChannel()
+    }
+    // each color once, all in lower or all in upper case
+    if (!colors.matches("-(?!.*(.).*\\1)([rgba]{1,4}|[RGBA]{1,4})")) {
+      throw new IllegalArgumentException("invalid set of flags - " + flags);
+    }
+    int mask = 0;
+    for (char c : colors.substring(1).toLowerCase(Locale.ROOT).toCharArray()) {
+      mask |= c == 'r' ? PayloadHeader.MASK_RED : c == 'g' ? PayloadHeader.MASK_GREEN
+        : c == 'b' ? PayloadHeader.MASK_BLUE : PayloadHeader.MASK_ALPHA;
+    }
+    return PayloadHeader.flagCodeForMask(mask);
+  }
+
+  /**
+   * This class counts the bytes read through it, which are the bytes of the
+   * payload before the codec encodes them.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = in.read(bytes, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+  }
+
+  /**
+   * This class counts the bytes written through it, which are the bytes of
+   * the payload once the codec has decoded them.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      count += length;
     }
-    return getRGB(r, g, b);
   }
 
 }
@@ -7,7 +7,11 @@
  * image
  * b.) revseal  - reveals the steganografied message in image
  *
- * 2.) Flags of which color bytes to conceal the message into (-rgb)
+ * 2.) Flags of which color bytes to conceal the message into (-rgb). These
+ * are recorded in the header written ahead of the message, so reveal uses the
+ * recorded colors and only needs the flags for images without a header. The
+ * header goes into the same colors as the message, so the colors left out are
+ * not changed at all.
  * a.) '-rgb'
  * b.) '-rg'
  * c.) '-rb'
@@ -15,39 +19,187 @@
  * e.) '-r'
  * f.) '-b'
  * g.) '-g'
+ * h.) any of them with an 'a' for the alpha bytes as well ('-rgba', '-ga'),
+ * or '-a' alone, for images with alpha saved as a png, qoi or pam
+ * Any of them can end with a digit from 1 to 4 ('-rgb2') to conceal into that
+ * many of the lowest bits of each color byte instead of just the lowest one.
  *
  * 3.) Path of the input image to conceal the message into
  * 4.) Path of the output image which holds the concealed message
  * 5.) Message to conceal into the image
+ *
+ * Options can be given anywhere after the operation, as '--name value' or
+ * '--name=value':
+ *
+ * --in-file <path>  : conceal the contents of a file instead of a message
+ * --out-file <path> : write the revealed payload to a file instead of printing
+ * it
+ * --threads <n>     : number of threads that embed or extract the payload
+ * --verify <mode>   : none, checksum or full (see Steganografier.Verify). The
+ * default, checksum, reads each chunk back as it is concealed and has reveal
+ * check the payload against the checksum recorded with it
+ * --format <format> : bmp, png or qoi; by default the extension of the output
+ * path picks the format, and anything else is saved as a bmp
+ * --png-level <n>   : deflate level of png output, 0 (fastest) to 9 (smallest)
+ * --codec <codec>   : auto, none, deflate or lz; how the payload is compressed
+ * before it is concealed (see PayloadCodec). The default, auto, picks one by
+ * the size of the payload
+ * --key <key>       : scatter the payload over the image with this key instead
+ * of writing it from the top down (see PixelScatter); reveal needs the same key
+ * --max-payload-mb <n> : for reveal, the most megabytes a compressed payload
+ * may decode to (see PayloadCodec); by default an eighth of the heap
+ * --log-level <l>  : debug, info, warn, error or off; the messages below the
+ * level are not printed (see Log)
+ * --metrics <f>     : json or prometheus; print the time, bytes, pixels and
+ * allocations of each stage once the operation is done (see StegMetrics)
+ *
+ * The batch operation conceals into or reveals from many images in one run
+ * (see BatchRunner):
+ *
+ * batch <manifestPath>
+ * batch <inputDir> --out-dir <outputDir> --flags <flags> --in-file <path>
+ *
+ * --workers <n>     : number of images handled at the same time (by shard and
+ * unshard), or embedded at the same time (by batch)
+ * --decoders <n>    : number of images batch reads at the same time (default
+ * half the workers)
+ * --encoders <n>    : number of images batch writes at the same time (default
+ * half the workers)
+ * --buffer-mb <n>   : megabytes of decoded images and buffers kept for the
+ * next images (see BufferPool); 0 keeps none. The default is a quarter of the
+ * heap
+ *
+ * The reveal-service operation keeps running and reveals the images named on
+ * standard input, one 'flags inputPath' per line, printing each message. The
+ * messages are kept in a RevealCache, so revealing an image again is nearly
+ * free; the line 'stats' prints the counters of the cache.
+ *
+ * reveal-service [--cache-mb <n>]
+ *
+ * The line 'metrics' prints the totals of StegMetrics as JSON.
+ *
+ * The serve operation runs a StegServer on the loopback address until the
+ * JVM is stopped:
+ *
+ * serve [--port <n>] [--max-requests <n>]
+ *
+ * The capacity operation reads only the header of an image and prints how
+ * many bytes of payload it holds for every set of flags and number of bits
+ * per color, or only for the flags given (see CapacityPlanner):
+ *
+ * capacity <inputPath> [--flags <flags>]
+ *
+ * The probe operation reads only the first rows of each image and prints
+ * whether it carries a payload, and its length, flags and codec if it does
+ * (see PayloadProbe). Directories are probed for the images in them, on
+ * several workers at once:
+ *
+ * probe <inputPath>... [--workers <n>]
+ *
+ * The shard operation splits a payload file across several images, saving
+ * each into the output directory under its own name, and unshard puts it
+ * back together from them, given in any order (see Sharder):
+ *
+ * shard <flags> <payloadPath> <outputDir> <inputPath>...
+ * unshard <payloadPath> <inputPath>...
  */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 public class Steganography {
 
-  public static void main(String[] args) {
+  public static void main(String[] allArgs) {
+
+    Map<String, String> options = new HashMap<>();
+    String[] args = parseOptions(allArgs, options);
+    setLogLevel(args, options);
 
     // if these conditions aren't met, show usage
-    if (args.length != 0 && args.length > 2 &&
+    if (args.length == 2 && args[0].equals("batch")) {
+      runBatch(args[1], options);
+
+    } else if (args.length == 1 && args[0].equals("reveal-service")) {
+      runRevealService(options);
+
+    } else if (args.length == 1 && args[0].equals("serve")) {
+      runServer(options);
+
+    } else if (args.length == 2 && args[0].equals("capacity")) {
+      printCapacity(args[1], options);
+
+    } else if (args.length >= 2 && args[0].equals("probe")) {
+      runProbe(args, options);
+
+    } else if (args.length >= 5 && args[0].equals("shard")) {
+      runShard(args, options);
+
+    } else if (args.length >= 3 && args[0].equals("unshard")) {
+      runUnshard(args, options);
+
+    } else if (args.length != 0 && args.length > 2 &&
       (args[0].equals("conceal") || args[0].equals("reveal"))) {
-      // TODO - regex checking for valid flags
       String flags = args[1];
       String inputFilePath = args[2];
+      int threads = intOption(options, "threads", 1);
+      Steganografier.Verify verify = verifyOption(options);
+      PayloadCodec codec = codecOption(options);
 
       if (args[0].equals("conceal")) {
-        if (args.length == 5) {
+        if (args.length == 4 && options.containsKey("in-file")) {
+          String outputFilePath = args[3];
+          if (!fits(inputFilePath, new File(options.get("in-file")).length(), flags, codec)) {
+            return;
+          }
+          StegImage si = new StegImage(inputFilePath, outputFilePath);
+          if (!isLoaded(si, inputFilePath)) {
+            return;
+          }
+          setOutputOptions(si, options);
+          concealFile(si, options.get("in-file"), flags, threads, verify, options.get("key"), codec);
+
+        } else if (args.length == 5) {
           String outputFilePath = args[3];
           String message = args[4];
+          if (!fits(inputFilePath, message.length(), flags, codec)) {
+            return;
+          }
 
           StegImage si = new StegImage(inputFilePath, outputFilePath);
+          if (!isLoaded(si, inputFilePath)) {
+            return;
+          }
+          setOutputOptions(si, options);
           Steganografier Steganografier = new Steganografier(si);
-          Steganografier.selectableSteganographi(message, flags);
-          String decodedMessage = Steganografier.selectableDesteganographi(flags);
-
-          // before saving the image, this checks to make sure the
-          // encoded message is the same as the decoded message
-          if (message.equals(decodedMessage)) {
+          Steganografier.setThreads(threads);
+          Steganografier.setVerify(verify);
+          Steganografier.setKey(options.get("key"));
+          Steganografier.setCodec(codec);
+          try {
+            // the message is checked as it is concealed, so the image is
+            // only saved if it holds the message
+            Steganografier.selectableSteganographi(message, flags);
             si.saveImage();
-          } else {
+          } catch (IllegalStateException e) {
             System.out.println("There was an error concealing the messge");
-            System.out.println(message + "   !=   " + decodedMessage);
+            System.out.println(e.getMessage());
+          } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
           }
 
         } else {
@@ -58,9 +210,26 @@ public class Steganography {
       } else if (args[0].equals("reveal")) {
         if (args.length == 3) {
           StegImage si = new StegImage(inputFilePath);
+          if (!isLoaded(si, inputFilePath)) {
+            return;
+          }
           Steganografier Steganografier = new Steganografier(si);
-          String decodedMessage = Steganografier.selectableDesteganographi(flags);
-          System.out.println(decodedMessage);
+          Steganografier.setThreads(threads);
+          Steganografier.setVerify(verify);
+          Steganografier.setKey(options.get("key"));
+          if (options.containsKey("max-payload-mb")) {
+            Steganografier.setMaxPayloadLength(intOption(options, "max-payload-mb", 0) * 1024L * 1024L);
+          }
+          try {
+            if (options.containsKey("out-file")) {
+              revealFile(Steganografier, options.get("out-file"));
+            } else {
+              String decodedMessage = Steganografier.selectableDesteganographi(flags);
+              System.out.println(decodedMessage);
+            }
+          } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+          }
         } else {
           System.out.println("Error: invalid number of arguments for reveal");
           System.exit(0);
@@ -70,12 +239,525 @@ public class Steganography {
     } else {
       System.out.println("\nUsage: \n" +
         "    conceal <flags> <inputPath> <outputPath> <message>\n" +
-        "    reveal <flags> <inputPath>\n\n" +
-        "    flags: '-rgb' or '-rg' or '-rb' or '-bg' or '-r' or '-b' or '-g'\n" +
+        "    conceal <flags> <inputPath> <outputPath> --in-file <payloadPath>\n" +
+        "    reveal <flags> <inputPath> [--out-file <payloadPath>]\n" +
+        "    batch <manifestPath> [--workers <n>]\n" +
+        "    batch <inputDir> --out-dir <outputDir> --flags <flags> --in-file <payloadPath> [--workers <n>]\n" +
+        "    batch also takes [--decoders <n>] [--encoders <n>] [--buffer-mb <n>]\n" +
+        "    reveal-service [--cache-mb <n>]   (then 'flags inputPath', 'stats' or 'metrics' per line)\n" +
+        "    serve [--port <n>] [--max-requests <n>]\n" +
+        "    capacity <inputPath> [--flags <flags>]\n" +
+        "    probe <inputPath>... [--workers <n>]   (an inputPath can be a directory of images)\n" +
+        "    shard <flags> <payloadPath> <outputDir> <inputPath>... [--workers <n>]\n" +
+        "    unshard <payloadPath> <inputPath>... [--workers <n>]\n" +
+        "    conceal, batch and shard also take [--format bmp|png|qoi] [--png-level <0-9>]\n" +
+        "    conceal and reveal also take [--key <key>]; reveal also takes [--max-payload-mb <n>]\n" +
+        "    conceal, batch and serve (as a query parameter) also take [--codec auto|none|deflate|lz]\n" +
+        "    all but capacity, probe and serve also take [--threads <n>] [--verify none|checksum|full]\n\n" +
+        "    flags: '-rgb' or '-rg' or '-rb' or '-bg' or '-r' or '-b' or '-g', optionally\n" +
+        "           followed by the number of low bits to use in each color, 1 to 4 ('-rgb2');\n" +
+        "           add 'a' ('-rgba', '-a') to use the alpha of an image saved as a png, qoi or pam\n" +
+        "           the colors left out are not changed, not even by the header of the message\n" +
         "    inputPath: path of the input image to coneal the message into\n" +
-        "    outputPath: path of the output image which holds the concealed message\n" +
-        "    message: \"message\" to conceal into the image");
+        "    outputPath: path of the output image which holds the concealed message; a .png or\n" +
+        "                .qoi extension saves it in that format, anything else as a bmp\n" +
+        "    message: \"message\" to conceal into the image\n" +
+        "    payloadPath: file to conceal, or to write the revealed payload to\n" +
+        "    manifestPath: file with one 'inputPath outputPath flags payloadPath' (conceal) or\n" +
+        "                  'reveal inputPath flags payloadPath' per line\n" +
+        "    --workers: number of images handled at the same time (embedded, for batch)\n" +
+        "    --decoders, --encoders: number of images batch reads and writes at the same time\n" +
+        "    --threads: number of threads that embed or extract each payload\n" +
+        "    --verify: checking done while concealing and revealing (default checksum)\n" +
+        "    --format: format of the output image, instead of going by its extension\n" +
+        "    --png-level: deflate level of png output (default 6)\n" +
+        "    --codec: compression of the payload before it is concealed (default auto)\n" +
+        "    --key: scatter the payload over the image with this key; reveal needs the same key\n" +
+        "    --max-payload-mb: most megabytes a compressed payload may reveal to (default an eighth of the heap)\n" +
+        "    --buffer-mb: megabytes of images and buffers batch keeps for reuse (default a quarter of the heap)\n" +
+        "    --cache-mb: megabytes of revealed messages reveal-service keeps (default 64)\n" +
+        "    --port: port serve listens on, on the loopback address (default 8080)\n" +
+        "    --max-requests: requests serve handles at the same time (default 2 per processor)\n" +
+        "    --flags: for capacity, print only the bytes the image holds with these flags\n" +
+        "    --log-level: debug, info, warn, error or off (default info, warn for the services)\n" +
+        "    --metrics: json or prometheus, to print the time spent in each stage at the end");
+      System.exit(0);
+    }
+    if (options.containsKey("metrics")) {
+      printMetrics(options.get("metrics"));
+    }
+  }
+
+  /**
+   * This method sets the level of the messages printed by the library (see
+   * Log) from the --log-level option. The long running operations only print
+   * warnings and errors unless told otherwise, so they don't print a line for
+   * every image.
+   *
+   * @param args
+   * @param options
+   */
+  private static void setLogLevel(String[] args, Map<String, String> options) {
+    boolean service = args.length > 0 && (args[0].equals("serve") || args[0].equals("reveal-service"));
+    // probe prints the error of every image that can't be read itself
+    boolean probe = args.length > 0 && args[0].equals("probe");
+    String level = options.getOrDefault("log-level", service ? "warn" : probe ? "off" : "info");
+    try {
+      Log.setLevel(level);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: --log-level must be debug, info, warn, error or off - " + level);
+      System.exit(0);
+    }
+  }
+
+  /**
+   * This method prints the totals of StegMetrics.
+   *
+   * @param format - json or prometheus
+   */
+  private static void printMetrics(String format) {
+    if (format.equalsIgnoreCase("json")) {
+      System.out.println(StegMetrics.toJson());
+    } else if (format.equalsIgnoreCase("prometheus")) {
+      System.out.print(StegMetrics.toPrometheus());
+    } else {
+      System.out.println("Error: --metrics must be json or prometheus - " + format);
+    }
+  }
+
+  /**
+   * This method pulls the '--name value' and '--name=value' options out of the
+   * arguments and puts them into options.
+   *
+   * @param args
+   * @param options
+   *
+   * @return the remaining arguments, in order
+   */
+  private static String[] parseOptions(String[] args, Map<String, String> options) {
+    List<String> remaining = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--")) {
+        int equals = args[i].indexOf('=');
+        if (equals > 0) {
+          options.put(args[i].substring(2, equals), args[i].substring(equals + 1));
+        } else if (i + 1 < args.length) {
+          options.put(args[i].substring(2), args[++i]);
+        } else {
+          System.out.println("Error: missing value for " + args[i]);
+          System.exit(0);
+        }
+      } else {
+        remaining.add(args[i]);
+      }
+    }
+    return remaining.toArray(new String[0]);
+  }
+
+  /**
+   * This method runs the batch operation on a manifest file or a directory of
+   * images.
+   *
+   * @param source  - manifest file or input directory
+   * @param options
+   */
+  private static void runBatch(String source, Map<String, String> options) {
+    int workers = intOption(options, "workers", Runtime.getRuntime().availableProcessors());
+    if (workers < 1) {
+      System.out.println("Error: --workers must be at least 1 - " + workers);
       System.exit(0);
     }
+    BatchRunner runner = new BatchRunner(workers, intOption(options, "threads", 1),
+      verifyOption(options));
+    runner.setOutputFormat(options.get("format"),
+      intOption(options, "png-level", PngWriter.DEFAULT_LEVEL));
+    runner.setCodec(codecOption(options));
+    try {
+      runner.setStageThreads(intOption(options, "decoders", Math.max(1, workers / 2)),
+        intOption(options, "encoders", Math.max(1, workers / 2)));
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(0);
+    }
+    if (options.containsKey("buffer-mb")) {
+      runner.setBufferPool(new BufferPool(intOption(options, "buffer-mb", 0) * 1024L * 1024L));
+    }
+    if (new File(source).isDirectory()) {
+      if (!options.containsKey("out-dir") || !options.containsKey("flags")
+        || !options.containsKey("in-file")) {
+        System.out.println("Error: batch on a directory needs --out-dir, --flags and --in-file");
+        System.exit(0);
+      }
+      runner.runDirectory(source, options.get("out-dir"), options.get("flags"),
+        options.get("in-file"));
+    } else {
+      try {
+        runner.runManifest(source);
+      } catch (IOException e) {
+        System.out.println("Error: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * This method runs the shard operation: shard flags payloadPath outputDir
+   * inputPath...
+   *
+   * @param args
+   * @param options
+   */
+  private static void runShard(String[] args, Map<String, String> options) {
+    List<String> inputs = Arrays.asList(args).subList(4, args.length);
+    List<String> outputs = new ArrayList<>();
+    String extension = options.getOrDefault("format", StegImage.FORMAT_BMP).toLowerCase(Locale.ROOT);
+    new File(args[3]).mkdirs();
+    for (String input : inputs) {
+      String name = new File(input).getName();
+      int dot = name.lastIndexOf('.');
+      outputs.add(new File(args[3], (dot < 0 ? name : name.substring(0, dot)) + "." + extension)
+        .getPath());
+    }
+    Sharder sharder = newSharder(options);
+    sharder.setOutputFormat(options.get("format"),
+      intOption(options, "png-level", PngWriter.DEFAULT_LEVEL));
+    try {
+      sharder.conceal(args[2], inputs, outputs, args[1]);
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    } catch (IllegalStateException e) {
+      System.out.println("There was an error concealing the file " + args[2]);
+      System.out.println(e.getMessage());
+    } finally {
+      sharder.shutdown();
+    }
+  }
+
+  /**
+   * This method runs the unshard operation: unshard payloadPath inputPath...
+   *
+   * @param args
+   * @param options
+   */
+  private static void runUnshard(String[] args, Map<String, String> options) {
+    Sharder sharder = newSharder(options);
+    try {
+      sharder.reveal(Arrays.asList(args).subList(2, args.length), args[1]);
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    } finally {
+      sharder.shutdown();
+    }
+  }
+
+  /**
+   * This method runs the probe operation: probe inputPath..., where each
+   * inputPath is an image or a directory of images.
+   *
+   * @param args
+   * @param options
+   */
+  private static void runProbe(String[] args, Map<String, String> options) {
+    int workers = intOption(options, "workers", Runtime.getRuntime().availableProcessors());
+    if (workers < 1) {
+      System.out.println("Error: --workers must be at least 1 - " + workers);
+      System.exit(0);
+    }
+    List<String> paths = new ArrayList<>();
+    for (String path : Arrays.asList(args).subList(1, args.length)) {
+      if (new File(path).isDirectory()) {
+        paths.addAll(PayloadProbe.images(path));
+      } else {
+        paths.add(path);
+      }
+    }
+    PayloadProbe probe = new PayloadProbe(workers);
+    try {
+      int found = 0;
+      for (PayloadProbe.Result result : probe.probeAll(paths)) {
+        System.out.println(result);
+        found += result.hasPayload() ? 1 : 0;
+      }
+      System.out.println(found + " of " + paths.size() + " images carry a payload");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      probe.shutdown();
+    }
+  }
+
+  private static Sharder newSharder(Map<String, String> options) {
+    return new Sharder(intOption(options, "workers", Runtime.getRuntime().availableProcessors()),
+      intOption(options, "threads", 1), verifyOption(options));
+  }
+
+  /**
+   * This method returns the value of an option as an int, or defaultValue if
+   * the option was not given.
+   *
+   * @param options
+   * @param name
+   * @param defaultValue
+   *
+   * @return
+   */
+  private static int intOption(Map<String, String> options, String name, int defaultValue) {
+    if (!options.containsKey(name)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(options.get(name));
+    } catch (NumberFormatException e) {
+      System.out.println("Error: --" + name + " must be a number - " + options.get(name));
+      System.exit(0);
+      return -1;
+    }
+  }
+
+  /**
+   * This method runs the reveal-service operation: it reveals the image named
+   * on every line of standard input until it ends, with the messages kept in
+   * a RevealCache.
+   *
+   * @param options
+   */
+  private static void runRevealService(Map<String, String> options) {
+    RevealCache cache = new RevealCache(intOption(options, "cache-mb", 64) * 1024L * 1024L,
+      verifyOption(options));
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        } else if (line.equals("stats")) {
+          System.out.println(cache.stats());
+          continue;
+        } else if (line.equals("metrics")) {
+          System.out.println(StegMetrics.toJson());
+          continue;
+        }
+        String[] fields = line.split("\\s+", 2);
+        if (fields.length != 2) {
+          System.out.println("Error: expected flags inputPath - " + line);
+          continue;
+        }
+        try {
+          System.out.println(new String(cache.reveal(fields[1], fields[0]), StandardCharsets.ISO_8859_1));
+        } catch (IOException | IllegalArgumentException e) {
+          System.out.println("Error: " + e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+    }
+  }
+
+  /**
+   * This method runs the serve operation: it starts a StegServer, which keeps
+   * the JVM running.
+   *
+   * @param options
+   */
+  private static void runServer(Map<String, String> options) {
+    try {
+      StegServer server = new StegServer(intOption(options, "port", 8080),
+        intOption(options, "max-requests", 2 * Runtime.getRuntime().availableProcessors()));
+      server.start();
+      System.out.println("Listening on http://127.0.0.1:" + server.getPort()
+        + "/conceal, /reveal and /metrics");
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    }
+  }
+
+  /**
+   * This method applies the --format and --png-level options to the output
+   * image.
+   *
+   * @param si
+   * @param options
+   */
+  private static void setOutputOptions(StegImage si, Map<String, String> options) {
+    try {
+      if (options.containsKey("format")) {
+        si.setOutputFormat(options.get("format"));
+      }
+      si.setPngLevel(intOption(options, "png-level", PngWriter.DEFAULT_LEVEL));
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(0);
+    }
+  }
+
+  /**
+   * This method returns the value of the --verify option, or
+   * Verify.CHECKSUM if it was not given.
+   *
+   * @param options
+   *
+   * @return
+   */
+  static Steganografier.Verify verifyOption(Map<String, String> options) {
+    String mode = options.getOrDefault("verify", "checksum");
+    try {
+      return Steganografier.Verify.valueOf(mode.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: --verify must be none, checksum or full - " + mode);
+      System.exit(0);
+      return null;
+    }
+  }
+
+  /**
+   * This method returns the value of the --codec option, or null (choose a
+   * codec for each payload) if it was not given or is auto.
+   *
+   * @param options
+   *
+   * @return
+   */
+  static PayloadCodec codecOption(Map<String, String> options) {
+    String name = options.getOrDefault("codec", "auto");
+    if (name.equalsIgnoreCase("auto")) {
+      return null;
+    }
+    try {
+      return PayloadCodec.forName(name);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: --codec must be auto, none, deflate or lz - " + name);
+      System.exit(0);
+      return null;
+    }
+  }
+
+  /**
+   * This method prints the capacity of the image at inputPath, for the
+   * --flags option if it was given and for all flags otherwise.
+   *
+   * @param inputPath
+   * @param options
+   */
+  private static void printCapacity(String inputPath, Map<String, String> options) {
+    try {
+      CapacityPlanner planner = new CapacityPlanner(inputPath);
+      if (options.containsKey("flags")) {
+        System.out.println(planner.capacity(options.get("flags")));
+      } else {
+        System.out.println(planner.report());
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    }
+  }
+
+  /**
+   * This method checks that the input image was read, and logs an error if it
+   * was not, like a batch job that fails to decode its image.
+   *
+   * @param si
+   * @param inputPath
+   *
+   * @return false if the image could not be read
+   */
+  private static boolean isLoaded(StegImage si, String inputPath) {
+    if (!si.isLoaded()) {
+      Log.error("The image could not be read - " + inputPath);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * This method checks, from the header of the image alone, that a payload
+   * of length bytes fits in it, so a payload that is too big is turned away
+   * before the image is decoded. Images whose size can't be read that way are
+   * left for StegImage to report. A payload that may be compressed is held to
+   * the smallest size it could be compressed to (see
+   * CapacityPlanner.requireFits()).
+   *
+   * @param inputPath
+   * @param length
+   * @param flags
+   * @param codec     - see codecOption()
+   *
+   * @return false if the payload does not fit or the flags are invalid
+   */
+  private static boolean fits(String inputPath, long length, String flags, PayloadCodec codec) {
+    try {
+      new CapacityPlanner(inputPath).requireFits(length, codec, flags);
+    } catch (IOException e) {
+      return true;
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * This method streams the file at payloadPath into the image and saves it.
+   *
+   * @param si
+   * @param payloadPath
+   * @param flags
+   * @param threads
+   * @param verify
+   * @param key     - see Steganografier.setKey(), or null
+   * @param codec   - see Steganografier.setCodec(), or null
+   */
+  private static void concealFile(StegImage si, String payloadPath, String flags, int threads,
+                                  Steganografier.Verify verify, String key, PayloadCodec codec) {
+    Steganografier Steganografier = new Steganografier(si);
+    Steganografier.setThreads(threads);
+    Steganografier.setVerify(verify);
+    Steganografier.setKey(key);
+    Steganografier.setCodec(codec);
+    try {
+      concealVerified(Steganografier, payloadPath, flags);
+      si.saveImage();
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    } catch (IllegalStateException e) {
+      System.out.println("There was an error concealing the file " + payloadPath);
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /**
+   * This method streams the file at payloadPath into the image. The
+   * Steganografier checks the payload as it conceals it (see
+   * Steganografier.setVerify()), so the file never has to be held in memory
+   * or read twice.
+   *
+   * @param Steganografier
+   * @param payloadPath
+   * @param flags
+   *
+   * @return the number of bytes concealed
+   *
+   * @throws IOException           if the file can't be read
+   * @throws IllegalStateException if the payload read back from the image
+   *                               does not match it
+   */
+  static long concealVerified(Steganografier Steganografier, String payloadPath, String flags)
+    throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(payloadPath))) {
+      return Steganografier.concealStream(in, flags);
+    }
+  }
+
+  /**
+   * This method streams the revealed payload into the file at payloadPath.
+   *
+   * @param Steganografier
+   * @param payloadPath
+   */
+  private static void revealFile(Steganografier Steganografier, String payloadPath) {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(payloadPath))) {
+      long length = Steganografier.revealStream(out);
+      System.out.println("Revealed " + length + " bytes to " + payloadPath);
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+    }
   }
 }
@@ -0,0 +1,95 @@
+/**
+ * This class checks that LsbEngine.extract(), which gathers the bits of
+ * packed layouts through a table, reads the same bytes as extractScalar(),
+ * which reads them a slot at a time, also when threads share the tables.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class LsbEngineTest {
+
+  /**
+   * For every flag code and bit depth, starting on each pixel of a run in
+   * which a byte can start on every slot, and for lengths that end on every
+   * slot too.
+   */
+  @Test
+  void extractMatchesExtractScalar() {
+    Random random = new Random(7);
+    int[] pixels = noisePixels(4096, random);
+    for (int flagCode = 0; flagCode < LsbEngine.FLAG_CODES; flagCode++) {
+      for (int bits = 1; bits <= LsbEngine.MAX_BITS; bits++) {
+        LsbEngine engine = new LsbEngine(flagCode, bits);
+        for (int firstPixel = 0; firstPixel < 24; firstPixel++) {
+          for (int length = 0; length < 40; length++) {
+            int offset = random.nextInt(8);
+            byte[] expected = new byte[offset + length];
+            byte[] actual = new byte[offset + length];
+            String where = "flag code " + flagCode + ", " + bits + " bits, pixel " + firstPixel
+              + ", " + length + " bytes";
+            assertEquals(engine.extractScalar(pixels, firstPixel, expected, offset, length),
+              engine.extract(pixels, firstPixel, actual, offset, length), where);
+            assertArrayEquals(expected, actual, where);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Several threads extracting with every layout at once, so they race to
+   * build and use the gather tables.
+   */
+  @Test
+  void concurrentExtractMatchesExtractScalar() throws Exception {
+    int[] pixels = noisePixels(4096, new Random(11));
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        results.add(pool.submit(() -> {
+          start.await();
+          for (int flagCode = 0; flagCode < LsbEngine.FLAG_CODES; flagCode++) {
+            for (int bits = 1; bits <= LsbEngine.MAX_BITS; bits++) {
+              LsbEngine engine = new LsbEngine(flagCode, bits);
+              int length = (int) Math.min(engine.capacity(pixels.length), 1024);
+              byte[] expected = new byte[length];
+              byte[] actual = new byte[length];
+              engine.extractScalar(pixels, 0, expected, 0, length);
+              engine.extract(pixels, 0, actual, 0, length);
+              assertArrayEquals(expected, actual, "flag code " + flagCode + ", " + bits + " bits");
+            }
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> result : results) {
+        result.get(); // rethrows an assertion that failed on the thread
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static int[] noisePixels(int count, Random random) {
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = random.nextInt();
+    }
+    return pixels;
+  }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * This class checks that PayloadCodec.decode() holds a payload to the most
+ * bytes it may decode to, whether the encoded bytes are written to it in
+ * arrays or one at a time.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import org.junit.jupiter.api.Test;
+
+class PayloadCodecTest {
+
+  private static final int MAX_LENGTH = 1000;
+
+  @Test
+  void decodeStopsAtMaxLength() {
+    byte[] payload = new byte[100_000];
+    for (PayloadCodec codec : new PayloadCodec[] {PayloadCodec.DEFLATE, PayloadCodec.LZ}) {
+      byte[] stored = codec.encode(payload);
+      ByteArrayOutputStream arrays = new ByteArrayOutputStream();
+      assertThrows(IllegalArgumentException.class, () -> {
+        try (OutputStream out = codec.decode(arrays, MAX_LENGTH)) {
+          out.write(stored, 0, stored.length);
+        }
+      }, codec.name());
+      assertTrue(arrays.size() <= MAX_LENGTH, codec.name());
+
+      ByteArrayOutputStream single = new ByteArrayOutputStream();
+      assertThrows(IllegalArgumentException.class, () -> {
+        try (OutputStream out = codec.decode(single, MAX_LENGTH)) {
+          for (byte b : stored) {
+            out.write(b);
+          }
+        }
+      }, codec.name());
+      assertTrue(single.size() <= MAX_LENGTH, codec.name());
+    }
+  }
+
+}
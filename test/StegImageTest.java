@@ -0,0 +1,52 @@
+/**
+ * This class checks that StegImage saves what was concealed into a carrier
+ * whose samples are not kept as they are by the output format.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StegImageTest {
+
+  @TempDir
+  Path directory;
+
+  /**
+   * A message concealed into a grayscale png and saved as a bmp, which
+   * converts it to RGB, is revealed from the bmp.
+   */
+  @Test
+  void grayPngSavedAsBmpRevealsMessage() throws IOException {
+    File input = directory.resolve("gray.png").toFile();
+    File output = directory.resolve("gray.bmp").toFile();
+    BufferedImage gray = new BufferedImage(97, 61, BufferedImage.TYPE_BYTE_GRAY);
+    Random random = new Random(11);
+    for (int y = 0; y < gray.getHeight(); y++) {
+      for (int x = 0; x < gray.getWidth(); x++) {
+        gray.getRaster().setSample(x, y, 0, random.nextInt(256));
+      }
+    }
+    ImageIO.write(gray, "png", input);
+    char[] text = new char[300];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (char) (' ' + random.nextInt(95)); // printable ASCII
+    }
+    String message = new String(text);
+
+    StegImage si = new StegImage(input.getPath(), output.getPath());
+    new Steganografier(si).selectableSteganographi(message, "-rgb");
+    assertTrue(si.saveImage(), "A grayscale png could not be saved as a bmp");
+    assertEquals(message,
+      new Steganografier(new StegImage(output.getPath())).selectableDesteganographi("-rgb"));
+  }
+
+}